@@ -0,0 +1,99 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.lang.ref.SoftReference;
+
+/**
+ *  Dense score accumulators, indexed by internal docid, for the
+ *  evaluators that add up scores a term or a segment at a time
+ *  (QryEvalTermAtATime and QryEvalScoreAtATime).  Allocating arrays of
+ *  maxDoc entries for every query is expensive, so one set is shared by
+ *  the evaluators and reused by later queries.  The shared set is held
+ *  by a soft reference, so the garbage collector can reclaim it when
+ *  memory is short.
+ *  <p>
+ *  A document is a candidate once something has been added to its
+ *  accumulator.  The candidates are listed in the order that they were
+ *  created.  Evaluators must call clear when they are done, which
+ *  resets only the entries that were used.
+ *  </p>
+ */
+public class Accumulators {
+
+  //  --------------- Constants and variables -----------------------
+
+  private static SoftReference<Accumulators> shared =
+    new SoftReference<Accumulators> (null);
+
+  /**
+   *  The accumulated score of each document.  Only the entries of
+   *  candidates are meaningful.
+   */
+  double[] values;
+
+  /**
+   *  True for each document that is a candidate.
+   */
+  boolean[] isCandidate;
+
+  /**
+   *  The candidates, in candidates[0..numCandidates-1].
+   */
+  int[] candidates;
+  int numCandidates = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  private Accumulators (int maxDoc) {
+    this.values = new double[maxDoc];
+    this.isCandidate = new boolean[maxDoc];
+    this.candidates = new int[maxDoc];
+  }
+
+  /**
+   *  Get the shared accumulators, with no candidates, for an index of
+   *  maxDoc documents.
+   *  @param maxDoc The number of documents in the current index.
+   *  @return The accumulators.
+   */
+  public static Accumulators get (int maxDoc) {
+
+    Accumulators accumulators = shared.get ();
+
+    if ((accumulators == null) || (accumulators.values.length < maxDoc)) {
+      accumulators = new Accumulators (maxDoc);
+      shared = new SoftReference<Accumulators> (accumulators);
+    }
+
+    return accumulators;
+  }
+
+  /**
+   *  Add a score to a document's accumulator, making the document a
+   *  candidate if it isn't one.
+   *  @param docid An internal document id.
+   *  @param score The score to add.
+   */
+  public void add (int docid, double score) {
+
+    if (! this.isCandidate[docid]) {
+      this.isCandidate[docid] = true;
+      this.values[docid] = 0.0;
+      this.candidates[this.numCandidates++] = docid;
+    }
+
+    this.values[docid] += score;
+  }
+
+  /**
+   *  Remove every candidate.
+   */
+  public void clear () {
+
+    for (int j = 0; j < this.numCandidates; j++) {
+      this.isCandidate[this.candidates[j]] = false;
+    }
+
+    this.numCandidates = 0;
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A commandline utility that compares the speed of the ways that
+ *  queries can be scored:  the query tree's own getScore methods
+ *  (interpreted), compiled scorers (QryScorer), and block-at-a-time
+ *  scoring (QryEvalBlockAtATime).  Each pass evaluates every query in
+ *  a query file once with each method, and checks that the methods
+ *  find the same top k documents with the same scores.  Queries that
+ *  block-at-a-time evaluation doesn't support are evaluated
+ *  exhaustively by it too.  The first pass warms up the JIT and isn't
+ *  timed.  Run it to see a simple usage message.
+ */
+public class BenchmarkScoring {
+
+  static String usage =
+    "Usage:  java " +
+    System.getProperty("sun.java.command") +
+    " -index INDEX_PATH -queries QUERY_FILE\n\n" +
+    "where options include\n" +
+    "    -model MODEL\tbm25 or indri (default bm25)\n" +
+    "    -k K\t\tthe number of top documents (default 1000)\n" +
+    "    -passes PASSES\tthe number of timed passes (default 10)\n" +
+    "    -iterator ITERATOR\tmaterialized or streaming (default materialized)\n";
+
+  private static final String[] METHODS = { "interpreted", "compiled", "block" };
+
+  /**
+   *  The main method for the BenchmarkScoring application.
+   *  @param args[] A list of commandline arguments.
+   *  @throws Exception Error accessing the index or reading the queries.
+   */
+  public static void main (String[] args) throws Exception {
+
+    String indexPath = null;
+    String queryPath = null;
+    String modelName = "bm25";
+    String iterator = "materialized";
+    int k = 1000;
+    int passes = 10;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[i + 1];
+      } else if ("-queries".equals (args[i])) {
+        queryPath = args[i + 1];
+      } else if ("-model".equals (args[i])) {
+        modelName = args[i + 1].toLowerCase ();
+      } else if ("-k".equals (args[i])) {
+        k = Integer.parseInt (args[i + 1]);
+      } else if ("-passes".equals (args[i])) {
+        passes = Integer.parseInt (args[i + 1]);
+      } else if ("-iterator".equals (args[i])) {
+        iterator = args[i + 1].toLowerCase ();
+      } else {
+        System.err.println ("\nWarning:  Unknown argument " + args[i] + " ignored.");
+      }
+    }
+
+    if ((indexPath == null) || (queryPath == null) || (args.length % 2 != 0) ||
+        ! (modelName.equals ("bm25") || modelName.equals ("indri"))) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    Idx.open (indexPath);
+
+    RetrievalModel model = modelName.equals ("bm25") ?
+      new RetrievalModelBM25 (1.2, 0.75, 0.0) :
+      new RetrievalModelIndri (2500, 0.4);
+    model.streamingTerms = iterator.equals ("streaming");
+
+    //  Parse the queries once.  Evaluation initializes them again.
+
+    ArrayList<Qry> queries = new ArrayList<Qry> ();
+    int numBlock = 0;
+
+    try (BufferedReader input = new BufferedReader (new FileReader (queryPath))) {
+      String line;
+
+      while ((line = input.readLine ()) != null) {
+        int d = line.indexOf (':');
+
+        if (d < 0)
+          continue;
+
+        Qry q = QryParser.getQuery (model.defaultQrySopName () + "(" +
+                                    line.substring (d + 1) + ")");
+
+        if ((q != null) && (q.args.size () > 0)) {
+          queries.add (q);
+
+          if (QryEvalBlockAtATime.supports (q, model))
+            numBlock ++;
+        }
+      }
+    }
+
+    System.out.println (queries.size () + " queries, " + numBlock +
+                        " of them block-at-a-time, k=" + k + ", " + modelName +
+                        ", " + iterator + " postings");
+
+    long[] nanos = new long[METHODS.length];
+    boolean identical = true;
+
+    for (int pass = 0; pass <= passes; pass++) {
+      for (Qry q : queries) {
+        ScoreList expected = null;
+
+        for (int m = 0; m < METHODS.length; m++) {
+          TopKCollector results = new TopKCollector (k);
+          long start = System.nanoTime ();
+
+          evaluate (METHODS[m], q, model, results);
+
+          if (pass > 0)
+            nanos[m] += System.nanoTime () - start;
+
+          ScoreList scores = results.getScoreList ();
+          scores.sort ();
+          scores.truncate (k);
+
+          if (expected == null) {
+            expected = scores;
+          } else if (! same (expected, scores)) {
+            identical = false;
+          }
+        }
+      }
+    }
+
+    for (int m = 0; m < METHODS.length; m++) {
+      System.out.printf ("%-12s %10.3f ms/pass  (%.2fx)%n", METHODS[m],
+                         nanos[m] / 1e6 / Math.max (passes, 1),
+                         (double) nanos[0] / (double) Math.max (nanos[m], 1L));
+    }
+
+    System.out.println ("Results " + (identical ? "are identical." : "DIFFER."));
+  }
+
+  /**
+   *  Evaluate a query with a scoring method.
+   *  @param method The name of the method.
+   *  @param q The query.
+   *  @param model The retrieval model.
+   *  @param results The collector of the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void evaluate (String method, Qry q, RetrievalModel model,
+                                TopKCollector results) throws IOException {
+
+    if (method.equals ("block") && QryEvalBlockAtATime.supports (q, model)) {
+      QryEvalBlockAtATime.evaluate (q, model, results);
+    } else {
+      model.compiledScoring = ! method.equals ("interpreted");
+      QryEval.evaluateExhaustive (q, model, results);
+    }
+  }
+
+  /**
+   *  Indicates whether two sorted score lists are the same.
+   *  @param a A score list.
+   *  @param b A score list.
+   *  @return True if they have the same documents and scores, in order.
+   */
+  private static boolean same (ScoreList a, ScoreList b) {
+
+    if (a.size () != b.size ())
+      return false;
+
+    for (int i = 0; i < a.size (); i++) {
+      if ((a.getDocid (i) != b.getDocid (i)) ||
+          (Double.compare (a.getDocidScore (i), b.getDocidScore (i)) != 0))
+        return false;
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+
+/**
+ *  A commandline utility that builds an external id column (see
+ *  ExternalIdColumn) for a Lucene 8 index.  Each document's stored
+ *  fields are read once, so that QryEval never has to read them to
+ *  find an external id.  Run it to see a simple usage message.
+ */
+public class BuildExternalIdColumn {
+
+  static String usage =
+    "Usage:  java " +
+    System.getProperty("sun.java.command") +
+    " -index INDEX_PATH -output EXTERNAL_ID_COLUMN_PATH\n\n" +
+    "where options include\n" +
+    "    -field FIELD\tthe stored field of external ids (default externalId)\n";
+
+  /**
+   *  The main method for the BuildExternalIdColumn application.
+   *  @param args[] A list of commandline arguments.
+   *  @throws Exception Error accessing the index or writing the output.
+   */
+  public static void main (String[] args) throws Exception {
+
+    String indexPath = null;
+    String outputPath = null;
+    String field = "externalId";
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[i + 1];
+      } else if ("-output".equals (args[i])) {
+        outputPath = args[i + 1];
+      } else if ("-field".equals (args[i])) {
+        field = args[i + 1];
+      } else {
+        System.err.println ("\nWarning:  Unknown argument " + args[i] + " ignored.");
+      }
+    }
+
+    if ((indexPath == null) || (outputPath == null) || (args.length % 2 != 0)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    Idx.open (indexPath);
+    build (field, outputPath);
+  }
+
+  /**
+   *  Build an external id column for the current index.
+   *  @param field The stored field of external ids.
+   *  @param outputPath The external id column file.
+   *  @throws IOException Error accessing the index or writing the output.
+   */
+  public static void build (String field, String outputPath)
+    throws IOException {
+
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+    int[] offsets = new int[maxDoc];
+    int[] lengths = new int[maxDoc];
+    ByteArrayOutputStream ids = new ByteArrayOutputStream ();
+    Set<String> fieldsToLoad = Collections.singleton (field);
+
+    //  Read only the id field of each document, in docid order.
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      Document d = Idx.INDEXREADER.document (docid, fieldsToLoad);
+      String id = d.get (field);
+
+      offsets[docid] = ids.size ();
+
+      if (id == null) {
+        lengths[docid] = -1;
+      } else {
+        byte[] bytes = id.getBytes (StandardCharsets.UTF_8);
+        lengths[docid] = bytes.length;
+        ids.write (bytes);
+      }
+    }
+
+    byte[] fieldBytes = field.getBytes (StandardCharsets.UTF_8);
+    long indexChecksum = Idx.getIndexChecksum ();
+    long fileSize = 4L * Integer.BYTES + Long.BYTES + fieldBytes.length +
+      2L * maxDoc * Integer.BYTES + ids.size ();
+
+    if (fileSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException
+        ("The external id column would be larger than 2 GB.");
+    }
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (new FileOutputStream (outputPath)))) {
+
+      out.writeInt (ExternalIdColumn.MAGIC);
+      out.writeInt (ExternalIdColumn.VERSION);
+      out.writeInt (fieldBytes.length);
+      out.write (fieldBytes);
+      out.writeInt (maxDoc);
+      out.writeLong (indexChecksum);
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        out.writeInt (offsets[docid]);
+      }
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        out.writeInt (lengths[docid]);
+      }
+
+      ids.writeTo (out);
+    }
+  }
+}
@@ -0,0 +1,305 @@
+/*
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  A commandline utility that builds an impact-ordered sidecar index
+ *  (see ImpactIndex) for one field of a Lucene 8 index.  The BM25 score
+ *  of each (term, document) pair is computed with the same statistics
+ *  and arithmetic as the SCORE operator, and quantized to an impact
+ *  between 1 and the number of levels.  Pairs whose score is 0 (e.g.,
+ *  because the term's idf is 0) have impact 0, so that the documents
+ *  that they match are still found.  Run it to see a simple usage
+ *  message.
+ */
+public class BuildImpactIndex {
+
+  static String usage =
+    "Usage:  java " +
+    System.getProperty("sun.java.command") +
+    " -index INDEX_PATH -output IMPACT_INDEX_PATH\n\n" +
+    "where options include\n" +
+    "    -field FIELD\tthe field to index (default body)\n" +
+    "    -k_1 K_1\t\tthe BM25 k_1 parameter (default 1.2)\n" +
+    "    -b B\t\tthe BM25 b parameter (default 0.75)\n" +
+    "    -levels LEVELS\tthe number of impact levels (default 255)\n";
+
+  /**
+   *  The main method for the BuildImpactIndex application.
+   *  @param args[] A list of commandline arguments.
+   *  @throws Exception Error accessing the index or writing the output.
+   */
+  public static void main (String[] args) throws Exception {
+
+    String indexPath = null;
+    String outputPath = null;
+    String field = "body";
+    double k_1 = 1.2;
+    double b = 0.75;
+    int levels = 255;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[i + 1];
+      } else if ("-output".equals (args[i])) {
+        outputPath = args[i + 1];
+      } else if ("-field".equals (args[i])) {
+        field = args[i + 1];
+      } else if ("-k_1".equals (args[i])) {
+        k_1 = Double.parseDouble (args[i + 1]);
+      } else if ("-b".equals (args[i])) {
+        b = Double.parseDouble (args[i + 1]);
+      } else if ("-levels".equals (args[i])) {
+        levels = Integer.parseInt (args[i + 1]);
+      } else {
+        System.err.println ("\nWarning:  Unknown argument " + args[i] + " ignored.");
+      }
+    }
+
+    if ((indexPath == null) || (outputPath == null) || (args.length % 2 != 0)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    Idx.open (indexPath);
+
+    //  k_3 weights query terms, so it doesn't affect the impacts.
+
+    RetrievalModelBM25 model = new RetrievalModelBM25 (k_1, b, 0.0);
+    build (model, field, levels, outputPath);
+  }
+
+  /**
+   *  Build an impact index for a field of the current index.
+   *  @param model The BM25 parameters.
+   *  @param field The field.
+   *  @param levels The number of impact levels.
+   *  @param outputPath The impact index file.
+   *  @throws IOException Error accessing the index or writing the output.
+   */
+  public static void build (RetrievalModelBM25 model, String field,
+                            int levels, String outputPath)
+    throws IOException {
+
+    Terms terms = MultiTerms.getTerms (Idx.INDEXREADER, field);
+
+    if (terms == null) {
+      throw new IllegalArgumentException ("The index has no field " + field);
+    }
+
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+    int[] docLengths = Idx.getFieldLengths (field);
+    double numDocs = (double) Idx.getNumDocs ();
+    double avgDocLen =
+      ((double) Idx.getSumOfFieldLengths (field)) / ((double) Idx.getDocCount (field));
+
+    //  The first pass finds the largest score, which is the top of the
+    //  quantization scale.
+
+    double maxScore = 0.0;
+    TermsEnum termsEnum = terms.iterator ();
+    PostingsEnum postings = null;
+
+    while (termsEnum.next () != null) {
+      double idf = idf (numDocs, termsEnum.docFreq ());
+
+      if (idf == 0.0)
+        continue;
+
+      postings = termsEnum.postings (postings, PostingsEnum.FREQS);
+
+      while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+        maxScore = Math.max (maxScore,
+                             score (model, idf, postings.freq (),
+                                    docLengths[postings.docID ()], avgDocLen));
+      }
+    }
+
+    //  The second pass writes each term's postings, grouped by impact.
+
+    int[] docids = new int[16];
+    int[] impacts = new int[16];
+    int[] counts = new int[levels + 1];
+    int[] starts = new int[levels + 1];
+    int[] next = new int[levels + 1];
+    int[] sorted = new int[16];
+    Map<String, Long> dictionary = new TreeMap<String, Long> ();
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream ();
+
+    try (CountingOutputStream counter = new CountingOutputStream (
+           new BufferedOutputStream (new FileOutputStream (outputPath)));
+         DataOutputStream out = new DataOutputStream (counter)) {
+
+      out.writeInt (ImpactIndex.MAGIC);
+      out.writeInt (ImpactIndex.VERSION);
+      ImpactIndex.writeString (out, field);
+      out.writeInt (maxDoc);
+      out.writeLong (Idx.getIndexChecksum ());
+      out.writeInt (levels);
+      out.writeDouble (model.k_1);
+      out.writeDouble (model.b);
+      out.writeDouble (maxScore);
+
+      termsEnum = terms.iterator ();
+
+      while (termsEnum.next () != null) {
+        double idf = idf (numDocs, termsEnum.docFreq ());
+
+        //  Quantize the term's scores.
+
+        int df = 0;
+        Arrays.fill (counts, 0);
+        postings = termsEnum.postings (postings, PostingsEnum.FREQS);
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          double score = score (model, idf, postings.freq (),
+                                docLengths[postings.docID ()], avgDocLen);
+          int impact = (score > 0.0) ?
+            Math.min (Math.max ((int) Math.ceil (score / maxScore * levels), 1), levels) : 0;
+
+          if (df == docids.length) {
+            docids = Arrays.copyOf (docids, 2 * df);
+            impacts = Arrays.copyOf (impacts, 2 * df);
+          }
+
+          docids[df] = postings.docID ();
+          impacts[df] = impact;
+          counts[impacts[df]] ++;
+          df ++;
+        }
+
+        //  Group the postings by decreasing impact.  Within a group
+        //  they stay in docid order.
+
+        if (sorted.length < df) {
+          sorted = new int[docids.length];
+        }
+
+        int numSegments = 0;
+
+        for (int impact = levels, start = 0; impact >= 0; impact--) {
+          starts[impact] = start;
+          start += counts[impact];
+
+          if (counts[impact] > 0)
+            numSegments ++;
+        }
+
+        System.arraycopy (starts, 0, next, 0, starts.length);
+
+        for (int i = 0; i < df; i++) {
+          sorted[next[impacts[i]]++] = docids[i];
+        }
+
+        dictionary.put (termsEnum.term ().utf8ToString (), counter.getCount ());
+        out.writeInt (numSegments);
+
+        for (int impact = levels; impact >= 0; impact--) {
+          if (counts[impact] == 0)
+            continue;
+
+          encoded.reset ();
+          int prev = 0;
+
+          for (int i = starts[impact]; i < starts[impact] + counts[impact]; i++) {
+            writeVByte (encoded, sorted[i] - prev);
+            prev = sorted[i];
+          }
+
+          out.writeInt (impact);
+          out.writeInt (counts[impact]);
+          out.writeInt (encoded.size ());
+          encoded.writeTo (out);
+        }
+      }
+
+      //  The dictionary, and then its offset.
+
+      long dictionaryOffset = counter.getCount ();
+      out.writeInt (dictionary.size ());
+
+      for (Map.Entry<String, Long> entry : dictionary.entrySet ()) {
+        ImpactIndex.writeString (out, entry.getKey ());
+        out.writeLong (entry.getValue ());
+      }
+
+      out.writeLong (dictionaryOffset);
+    }
+
+    System.out.println ("Wrote " + dictionary.size () + " terms of field " +
+                        field + " to " + outputPath);
+  }
+
+  /**
+   *  Get the BM25 idf of a term, as the SCORE operator computes it.
+   *  @param numDocs The number of documents in the index.
+   *  @param df The document frequency of the term.
+   *  @return The idf.
+   */
+  private static double idf (double numDocs, double df) {
+    return Math.max(0.0, Math.log(((numDocs - df + 0.5) / (df + 0.5))));
+  }
+
+  /**
+   *  Get the BM25 score of a term in a document, as the SCORE operator
+   *  computes it.
+   *  @param model The BM25 parameters.
+   *  @param idf The idf of the term.
+   *  @param tf The term frequency in the document.
+   *  @param docLen The length of the field in the document.
+   *  @param avgDocLen The average length of the field.
+   *  @return The score.
+   */
+  private static double score (RetrievalModelBM25 model, double idf,
+                               double tf, double docLen, double avgDocLen) {
+    double p2 = tf / (tf + model.k_1 * ((1.0 - model.b) + model.b * (docLen / avgDocLen)));
+    return idf * p2;
+  }
+
+  /**
+   *  Write a non-negative integer in VByte format.
+   *  @param out The stream to write to.
+   *  @param value The value.
+   */
+  private static void writeVByte (ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write (value);
+  }
+
+  /**
+   *  An output stream that counts the bytes that are written to it,
+   *  so that the dictionary can record each term's offset.
+   */
+  private static class CountingOutputStream extends FilterOutputStream {
+
+    private long count = 0;
+
+    CountingOutputStream (OutputStream out) {
+      super (out);
+    }
+
+    public void write (int b) throws IOException {
+      this.out.write (b);
+      this.count ++;
+    }
+
+    public void write (byte[] b, int off, int len) throws IOException {
+      this.out.write (b, off, len);
+      this.count += len;
+    }
+
+    long getCount () {
+      return this.count;
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ *  A column of the external document ids of a Lucene index, indexed by
+ *  internal docid, written by BuildExternalIdColumn.  Looking up an
+ *  external id reads a few bytes of a memory-mapped file, instead of
+ *  reading and decompressing the document's stored fields.
+ *  <p>
+ *  The file is:  a header (MAGIC, VERSION, field, maxDoc, the checksum
+ *  of the index's commit, see Idx.getIndexChecksum); the offset
+ *  of each document's id; the length of each document's id in bytes,
+ *  or -1 if the document has no id; and the ids, UTF-8 encoded.  The
+ *  file is memory-mapped, so it must be smaller than 2 GB.
+ *  </p>
+ */
+public class ExternalIdColumn {
+
+  //  --------------- Constants and variables -----------------------
+
+  public static final int MAGIC = 0x51455849;		// "QEXI"
+  public static final int VERSION = 2;
+
+  private ByteBuffer data;
+
+  private String field;
+  private int maxDoc;
+  private long indexChecksum;
+
+  //  The positions in the file of the offsets, lengths, and ids.
+
+  private int offsetsStart;
+  private int lengthsStart;
+  private int idsStart;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open an external id column.
+   *  @param path The external id column file.
+   *  @return The external id column.
+   *  @throws IOException Error reading the file.
+   */
+  public static ExternalIdColumn open (String path) throws IOException {
+
+    ExternalIdColumn column = new ExternalIdColumn ();
+
+    try (FileChannel channel = FileChannel.open (Paths.get (path))) {
+      column.data = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    }
+
+    ByteBuffer in = column.data.duplicate ();
+
+    if (in.getInt () != MAGIC) {
+      throw new IllegalArgumentException (path + " is not an external id column.");
+    }
+
+    if (in.getInt () != VERSION) {
+      throw new IllegalArgumentException
+        (path + " is an old external id column; rebuild it with BuildExternalIdColumn.");
+    }
+
+    byte[] bytes = new byte[in.getInt ()];
+    in.get (bytes);
+    column.field = new String (bytes, StandardCharsets.UTF_8);
+    column.maxDoc = in.getInt ();
+    column.indexChecksum = in.getLong ();
+
+    column.offsetsStart = in.position ();
+    column.lengthsStart = column.offsetsStart + column.maxDoc * Integer.BYTES;
+    column.idsStart = column.lengthsStart + column.maxDoc * Integer.BYTES;
+
+    return column;
+  }
+
+  /**
+   *  Get the external id of a document.
+   *  @param docid An internal docid.
+   *  @return The external id, or null if the document doesn't have one.
+   */
+  public String get (int docid) {
+
+    int length = this.data.getInt (this.lengthsStart + docid * Integer.BYTES);
+
+    if (length < 0)
+      return null;
+
+    int offset = this.idsStart +
+      this.data.getInt (this.offsetsStart + docid * Integer.BYTES);
+    byte[] bytes = new byte[length];
+    ByteBuffer in = this.data.duplicate ();
+
+    in.position (offset);
+    in.get (bytes);
+
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the name of the field that the ids were read from.
+   *  @return The field.
+   */
+  public String getField () {
+    return this.field;
+  }
+
+  /**
+   *  Get the number of documents in the index that the column was
+   *  built for.
+   *  @return The index's maxDoc.
+   */
+  public int getMaxDoc () {
+    return this.maxDoc;
+  }
+
+  /**
+   *  Get the checksum of the commit of the index that the column was
+   *  built for.
+   *  @return The checksum.
+   */
+  public long getIndexChecksum () {
+    return this.indexChecksum;
+  }
+
+  /**
+   *  Get a description of the column.
+   *  @return The description.
+   */
+  public String toString () {
+    return ("external id column of " + this.field + ", " + this.maxDoc +
+            " documents");
+  }
+}
@@ -5,6 +5,7 @@ import java.io.*;
 import java.nio.file.Paths;
 import java.util.*;
 
+import org.apache.lucene.codecs.CodecUtil;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
@@ -34,6 +35,42 @@ public class Idx {
   private static HashMap<String,IndexReader> openIndexReaders =
     new HashMap<String,IndexReader> ();
   private static String externalIdField = new String ("externalId");
+  private static String currentIndexPath = null;
+
+  /**
+   *  Document lengths, one dense column per (index path, field), read
+   *  from the norms the first time that the field's lengths are needed.
+   */
+  private static HashMap<String,int[]> fieldLengthColumns =
+    new HashMap<String,int[]> ();
+
+  /**
+   *  External id columns, one per index path, if they were provided.
+   */
+  private static HashMap<String,ExternalIdColumn> externalIdColumns =
+    new HashMap<String,ExternalIdColumn> ();
+
+  /**
+   *  The postings cache.  Inverted lists of terms are kept across
+   *  queries, keyed by (index path, field, term), in least-recently-used
+   *  order.  The cache is disabled when its capacity is 0.
+   */
+  private static LinkedHashMap<String,CachedPostings> postingsCache =
+    new LinkedHashMap<String,CachedPostings> (16, 0.75f, true);
+  private static long postingsCacheCapacity = 0;
+  private static long postingsCacheBytes = 0;
+  private static long postingsCacheHits = 0;
+  private static long postingsCacheMisses = 0;
+  private static long postingsCacheEvictions = 0;
+
+  /**
+   *  A postings cache entry.
+   */
+  private static class CachedPostings {
+    InvList invList;
+    boolean withPositions;
+    long bytes;
+  }
 
   //  --------------- Methods ---------------------------------------
 
@@ -79,16 +116,63 @@ public class Idx {
 
   /**
    *  Get the external document id for a document specified by an
-   *  internal document id.
+   *  internal document id.  If the current index has an external id
+   *  column (see setExternalIdColumn), the id is read from it;
+   *  otherwise the document's stored fields are read.
    *  @param iid The internal document id of the document.
    *  @return the external document id
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
+    ExternalIdColumn column = externalIdColumns.get(currentIndexPath);
+
+    if (column != null)
+      return column.get(Objects.checkIndex(iid, column.getMaxDoc()));
+
     Document d = Idx.INDEXREADER.document(iid);
     return d.get(externalIdField);
   }
 
+  /**
+   *  Use an external id column (see BuildExternalIdColumn) to look up
+   *  the external ids of the current index.
+   *  @param column An external id column built for the current index.
+   *  @throws IllegalArgumentException The column was built for a
+   *  different index or field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void setExternalIdColumn (ExternalIdColumn column)
+    throws IOException {
+
+    if ((column.getMaxDoc () != Idx.INDEXREADER.maxDoc ()) ||
+        (column.getIndexChecksum () != getIndexChecksum ()) ||
+        ! column.getField ().equals (externalIdField)) {
+      throw new IllegalArgumentException
+        ("The " + column + " doesn't match the index.");
+    }
+
+    externalIdColumns.put (currentIndexPath, column);
+  }
+
+  /**
+   *  Get a checksum that identifies the commit of the current index:
+   *  the checksum of its segments_N file, which records the random ids
+   *  of the commit and its segments.  Two indexes with the same number
+   *  of documents still have different checksums.
+   *  @return The checksum.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long getIndexChecksum () throws IOException {
+
+    IndexCommit commit = ((DirectoryReader) Idx.INDEXREADER).getIndexCommit ();
+
+    try (IndexInput in =
+           commit.getDirectory ().openInput (commit.getSegmentsFileName (),
+                                             IOContext.READONCE)) {
+      return CodecUtil.retrieveChecksum (in);
+    }
+  }
+
   /**
    *  Get the length of the specified field in the specified document.
    *  @param fieldName Name of field to access lengths.
@@ -98,20 +182,47 @@ public class Idx {
    */
   public static long getFieldLength (String fieldName, int docid)
     throws IOException {
+    return getFieldLengths (fieldName)[docid];
+  }
 
-    LeafReaderContext leafContext = getLeafReaderContext (Idx.INDEXREADER, docid);
-    int leafDocid = docid - leafContext.docBase;
-    LeafReader leafReader = leafContext.reader ();
-    NumericDocValues norms = leafReader.getNormValues (fieldName);
-    long fieldLength = 0;
-	    
-    if (norms != null) {
-      if (norms.advanceExact (leafDocid)) {
-	fieldLength = norms.longValue();
+  /**
+   *  Get the lengths of the specified field in every document of the
+   *  current index.  The column is read from the norms in one
+   *  sequential pass the first time that it is requested, and then
+   *  kept, so callers that score many documents should fetch it once
+   *  and index it by internal docid.  Documents without the field
+   *  have length 0.  The array must not be modified.
+   *  @param fieldName Name of field to access lengths.
+   *  @return the field lengths, indexed by internal docid.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int[] getFieldLengths (String fieldName)
+    throws IOException {
+
+    String key = currentIndexPath + "\u0000" + fieldName;
+    int[] lengths = fieldLengthColumns.get (key);
+
+    if (lengths == null) {
+      lengths = new int[Idx.INDEXREADER.maxDoc ()];
+
+      for (LeafReaderContext leafContext : Idx.INDEXREADER.leaves ()) {
+	NumericDocValues norms =
+	  leafContext.reader ().getNormValues (fieldName);
+
+	if (norms == null)
+	  continue;
+
+	int leafDocid;
+
+	while ((leafDocid = norms.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+	  lengths[leafContext.docBase + leafDocid] = (int) norms.longValue ();
+	}
       }
+
+      fieldLengthColumns.put (key, lengths);
     }
-	    
-    return fieldLength;
+
+    return lengths;
   }
 
   /**
@@ -189,6 +300,123 @@ public class Idx {
     return null;
   }
 
+  /**
+   *  Get a term's inverted list from the postings cache.  A list
+   *  without positions does not satisfy a request for positions.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @param withPositions True if the list must have positions.
+   *  @return The inverted list, or null if it is not cached.
+   */
+  public static InvList getCachedPostings (String fieldName, String term,
+                                           boolean withPositions) {
+
+    if (postingsCacheCapacity <= 0)
+      return null;
+
+    CachedPostings entry =
+      postingsCache.get (postingsCacheKey (fieldName, term));
+
+    if ((entry == null) || (withPositions && ! entry.withPositions)) {
+      postingsCacheMisses ++;
+      return null;
+    }
+
+    postingsCacheHits ++;
+    return entry.invList;
+  }
+
+  /**
+   *  Add a term's inverted list to the postings cache, evicting the
+   *  least recently used lists if the cache is full.  Lists that are
+   *  larger than the cache, or that are valid for only one query
+   *  (InvListOffHeap), are not cached.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @param withPositions True if the list has positions.
+   *  @param invList The inverted list.
+   */
+  public static void putCachedPostings (String fieldName, String term,
+                                        boolean withPositions, InvList invList) {
+
+    if ((postingsCacheCapacity <= 0) ||
+        (invList instanceof InvListOffHeap))
+      return;
+
+    long bytes = invList.sizeInBytes ();
+
+    if (bytes > postingsCacheCapacity)
+      return;
+
+    CachedPostings entry = new CachedPostings ();
+    entry.invList = invList;
+    entry.withPositions = withPositions;
+    entry.bytes = bytes;
+
+    CachedPostings old =
+      postingsCache.put (postingsCacheKey (fieldName, term), entry);
+
+    if (old != null)
+      postingsCacheBytes -= old.bytes;
+
+    postingsCacheBytes += bytes;
+
+    //  The new entry is the most recently used, and it fits, so it is
+    //  never evicted.
+
+    evictPostings ();
+  }
+
+  /**
+   *  Evict inverted lists from the postings cache, in least-recently-used
+   *  order, until the cache is within its capacity.
+   */
+  private static void evictPostings () {
+
+    Iterator<CachedPostings> it = postingsCache.values ().iterator ();
+
+    while (postingsCacheBytes > postingsCacheCapacity) {
+      CachedPostings lru = it.next ();
+      postingsCacheBytes -= lru.bytes;
+      it.remove ();
+      postingsCacheEvictions ++;
+    }
+  }
+
+  /**
+   *  Get a string that describes the postings cache, including its
+   *  hit, miss, and eviction counts.
+   *  @return The description.
+   */
+  public static String getPostingsCacheStatistics () {
+    return ("postings cache:  " + postingsCache.size () + " lists, " +
+            postingsCacheBytes + " of " + postingsCacheCapacity + " bytes, " +
+            postingsCacheHits + " hits, " +
+            postingsCacheMisses + " misses, " +
+            postingsCacheEvictions + " evictions");
+  }
+
+  /**
+   *  Get the postings cache key of a term in the current index.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The key.
+   */
+  private static String postingsCacheKey (String fieldName, String term) {
+    return (currentIndexPath + "\u0000" + fieldName + "\u0000" + term);
+  }
+
+  /**
+   *  Set the capacity of the postings cache.  Cached lists are evicted
+   *  if they no longer fit.  A capacity of 0 disables the cache.
+   *  @param bytes The capacity, in bytes.
+   */
+  public static void setPostingsCacheSize (long bytes) {
+
+    postingsCacheCapacity = Math.max (0, bytes);
+    evictPostings ();
+  }
+
   /**
    *  Get the total number of documents in the corpus.
    *  @return The total number of documents.
@@ -255,6 +483,7 @@ public class Idx {
 
     if (Idx.INDEXREADER == null) {
       Idx.INDEXREADER = indexReader;
+      Idx.currentIndexPath = indexPath;
     }
   }
 
@@ -274,5 +503,6 @@ public class Idx {
     }
 
     Idx.INDEXREADER = indexReader;
+    Idx.currentIndexPath = indexPath;
   }
 }
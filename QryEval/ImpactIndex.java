@@ -0,0 +1,244 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ *  An impact-ordered sidecar index for one field of a Lucene index,
+ *  written by BuildImpactIndex.  Each (term, document) pair has a BM25
+ *  score that is quantized to an integer impact.  A term's postings
+ *  are grouped into segments of equal impact, in decreasing order of
+ *  impact, and the document ids in each segment are in increasing
+ *  order, delta and VByte encoded.
+ *  <p>
+ *  The file is:  a header (MAGIC, VERSION, field, maxDoc, the checksum
+ *  of the index's commit (see Idx.getIndexChecksum), levels, k_1, b,
+ *  maxScore); the terms' segments; a dictionary of (term, offset)
+ *  pairs; and the offset of the dictionary.  A term's data is the
+ *  number of segments, and for each segment its impact, number of
+ *  documents, number of bytes, and encoded document ids.  The file is
+ *  memory-mapped, so it must be smaller than 2 GB.
+ *  </p>
+ */
+public class ImpactIndex {
+
+  //  --------------- Constants and variables -----------------------
+
+  public static final int MAGIC = 0x51455049;		// "QEPI"
+  public static final int VERSION = 2;
+
+  private ByteBuffer data;
+  private Map<String, Integer> dictionary = new HashMap<String, Integer> ();
+
+  private String field;
+  private int maxDoc;
+  private long indexChecksum;
+  private int levels;
+  private double k1;
+  private double b;
+  private double maxScore;
+
+  /**
+   *  A segment of a term's postings that have the same impact.
+   */
+  public static class Segment {
+
+    /**
+     *  The quantized score of each document in the segment.
+     */
+    public int impact;
+
+    /**
+     *  The number of documents in the segment.
+     */
+    public int count;
+
+    private int offset;
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open an impact index.
+   *  @param path The impact index file.
+   *  @return The impact index.
+   *  @throws IOException Error reading the file.
+   */
+  public static ImpactIndex open (String path) throws IOException {
+
+    ImpactIndex index = new ImpactIndex ();
+
+    try (FileChannel channel = FileChannel.open (Paths.get (path))) {
+      index.data = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    }
+
+    ByteBuffer in = index.data.duplicate ();
+
+    if (in.getInt () != MAGIC) {
+      throw new IllegalArgumentException (path + " is not an impact index.");
+    }
+
+    if (in.getInt () != VERSION) {
+      throw new IllegalArgumentException
+        (path + " is an old impact index; rebuild it with BuildImpactIndex.");
+    }
+
+    index.field = readString (in);
+    index.maxDoc = in.getInt ();
+    index.indexChecksum = in.getLong ();
+    index.levels = in.getInt ();
+    index.k1 = in.getDouble ();
+    index.b = in.getDouble ();
+    index.maxScore = in.getDouble ();
+
+    //  The dictionary is at the end of the file.
+
+    in.position ((int) in.getLong (in.limit () - Long.BYTES));
+    int numTerms = in.getInt ();
+
+    for (int i = 0; i < numTerms; i++) {
+      String term = readString (in);
+      index.dictionary.put (term, (int) in.getLong ());
+    }
+
+    return index;
+  }
+
+  /**
+   *  Read a length-prefixed UTF-8 string.
+   *  @param in The buffer to read from.
+   *  @return The string.
+   */
+  private static String readString (ByteBuffer in) {
+    byte[] bytes = new byte[in.getInt ()];
+    in.get (bytes);
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Write a length-prefixed UTF-8 string.
+   *  @param out The stream to write to.
+   *  @param s The string.
+   *  @throws IOException Error writing the stream.
+   */
+  static void writeString (DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes (StandardCharsets.UTF_8);
+    out.writeInt (bytes.length);
+    out.write (bytes);
+  }
+
+  /**
+   *  Decode the document ids of a segment.
+   *  @param segment A segment of this index.
+   *  @param docids An array of at least segment.count document ids.
+   */
+  public void decode (Segment segment, int[] docids) {
+
+    int p = segment.offset;
+    int docid = 0;
+
+    for (int i = 0; i < segment.count; i++) {
+      int delta = 0;
+      int shift = 0;
+      byte v;
+
+      do {
+        v = this.data.get (p++);
+        delta |= (v & 0x7F) << shift;
+        shift += 7;
+      } while (v < 0);
+
+      docid += delta;
+      docids[i] = docid;
+    }
+  }
+
+  /**
+   *  Get the field that the index was built for.
+   *  @return The field.
+   */
+  public String getField () {
+    return this.field;
+  }
+
+  /**
+   *  Get the number of documents (including deleted documents) in the
+   *  Lucene index that the index was built for.
+   *  @return maxDoc.
+   */
+  public int getMaxDoc () {
+    return this.maxDoc;
+  }
+
+  /**
+   *  Get the checksum of the commit of the Lucene index that the index
+   *  was built for.
+   *  @return The checksum.
+   */
+  public long getIndexChecksum () {
+    return this.indexChecksum;
+  }
+
+  /**
+   *  Indicates whether the index was built with a retrieval model's
+   *  BM25 parameters.
+   *  @param r A BM25 retrieval model.
+   *  @return True if k_1 and b are the same.
+   */
+  public boolean matches (RetrievalModelBM25 r) {
+    return ((r.k_1 == this.k1) && (r.b == this.b));
+  }
+
+  /**
+   *  Get the BM25 score that one unit of impact represents.
+   *  @return The score.
+   */
+  public double getScale () {
+    return this.maxScore / this.levels;
+  }
+
+  /**
+   *  Get the segments of a term, in decreasing order of impact.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The segments, which are empty if the term isn't indexed.
+   */
+  public ArrayList<Segment> getSegments (String term) {
+
+    ArrayList<Segment> segments = new ArrayList<Segment> ();
+    Integer offset = this.dictionary.get (term);
+
+    if (offset == null)
+      return segments;
+
+    ByteBuffer in = this.data.duplicate ();
+    in.position (offset);
+    int numSegments = in.getInt ();
+
+    for (int i = 0; i < numSegments; i++) {
+      Segment segment = new Segment ();
+      segment.impact = in.getInt ();
+      segment.count = in.getInt ();
+      int numBytes = in.getInt ();
+      segment.offset = in.position ();
+      in.position (segment.offset + numBytes);
+      segments.add (segment);
+    }
+
+    return segments;
+  }
+
+  /**
+   *  Get a description of the index.
+   *  @return The description.
+   */
+  public String toString () {
+    return ("impact index of " + this.field + ", " + this.dictionary.size () +
+            " terms, " + this.levels + " levels, BM25 k_1=" + this.k1 +
+            " b=" + this.b);
+  }
+}
@@ -38,51 +38,30 @@ public class InvList {
   public String term_word;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  Postings are stored column-wise in parallel primitive arrays.
+   *  The n'th posting is docids[n] and tfs[n]; its positions are
+   *  positions[positionOffsets[n]] ... positions[positionOffsets[n]+tfs[n]-1],
+   *  unless the posting was appended without positions.
+   *  Arrays may be larger than df; entries beyond df are unused.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  private int[] docids = new int[0];
+  private int[] tfs = new int[0];
+  private int[] positionOffsets = new int[0];
+  private int[] positions = new int[0];
+  private int numPositions = 0;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  The number of postings between skip points.
    */
-  public class DocPosting {
-
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
-
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
-
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  public static final int SKIP_INTERVAL = 128;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      // System.out.println("TF SIZE: " + locations.size());
-      for (int p = 0; p < locations.size(); p++)
-        this.positions.add(locations.get(p));
-    }
-  }
+  /**
+   *  The skip table.  skipDocids[k] is the docid of posting
+   *  k * SKIP_INTERVAL, so a search for a docid can jump over blocks
+   *  of SKIP_INTERVAL postings without reading them.
+   */
+  private int[] skipDocids = new int[0];
+  private int numSkips = 0;
 
   //  --------------- Methods ---------------------------------------
 
@@ -107,6 +86,20 @@ public class InvList {
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this (termString, fieldString, true);
+  }
+
+  /**
+   *  Get an inverted list from the index, optionally without positions.
+   *  A list without positions has docids and term frequencies only;
+   *  getPosition must not be used with it.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param withPositions If false, positions are not read from the index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString, boolean withPositions)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
@@ -118,16 +111,47 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int termDf = Idx.INDEXREADER.docFreq(term);
+
+    if (termDf < 1)
       return;
 
+    //  The index statistics give the final size of the list, so the
+    //  arrays are allocated once.  Deleted documents may make them a
+    //  little larger than necessary.
+
+    this.ensurePostingsCapacity (termDf);
+
+    if (withPositions)
+      this.ensurePositionsCapacity (
+        (int) Math.min (Idx.INDEXREADER.totalTermFreq(term), Integer.MAX_VALUE));
+
+    this.readPostings (term, withPositions);
+  }
+
+  /**
+   *  Append the postings of a term in the current index to this list.
+   *  Postings are added with appendPosting, so subclasses that store
+   *  postings differently can use this method to read from the index.
+   *  @param term The Lucene term (field and term string).
+   *  @param withPositions If false, only docids and term frequencies
+   *  are read, which is much faster.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void readPostings (Term term, boolean withPositions)
+    throws IOException {
+
+    int flags = withPositions ? PostingsEnum.POSITIONS : PostingsEnum.FREQS;
+
+    int[] locations = new int[16];
+
     //  Lucene indexes have segments, so postings must be retrieved
     //  from each segment.  Some segments may have no postings.
 
     for (LeafReaderContext context : Idx.INDEXREADER.leaves()) {
 
       PostingsEnum postings =
-	    context.reader().postings (term, PostingsEnum.POSITIONS);
+	    context.reader().postings (term, flags);
 
       if (postings != null) {
 
@@ -140,14 +164,19 @@ public class InvList {
 
         int docid = context.docBase + postings.docID();
         int tf = postings.freq();
-        int[] positions = new int[tf];
+
+        if (! withPositions) {
+          this.appendPosting (docid, tf);
+          continue;
+        }
+
+        if (tf > locations.length)
+          locations = new int[Math.max (tf, 2 * locations.length)];
 
         for (int p = 0; p < tf; p++)
-          positions[p] = postings.nextPosition();
+          locations[p] = postings.nextPosition();
 
-        this.postings.add(new DocPosting(docid, positions));
-        this.df++;
-        this.ctf += tf;
+        this.appendPosting (docid, locations, tf);
         }
       }
     }
@@ -157,33 +186,141 @@ public class InvList {
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
    *  @param docid The internal document id of the posting.
-   *  @param positions A list of positions where the term occurs.
+   *  @param locations An array of positions where the term occurs.
+   *  @param count The number of positions to use from locations.
    *  @return true if the posting was added successfully, otherwise false.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
+  public boolean appendPosting (int docid, int[] locations, int count) {
     
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
     if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+	(this.docids[this.df-1] >= docid))
+      return false;
+
+    this.ensurePostingsCapacity (this.df + 1);
+    this.ensurePositionsCapacity (this.numPositions + count);
+    this.addSkip (this.df, docid);
+
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = count;
+    this.positionOffsets[this.df] = this.numPositions;
+    System.arraycopy (locations, 0, this.positions, this.numPositions, count);
+
+    this.df ++;
+    this.ctf += count;
+    this.numPositions += count;
+    return true;
+  }
+
+  /**
+   *  Append a posting without positions to the posting list.  Posting
+   *  must be appended in docid order, otherwise this method fails.
+   *  getPosition must not be used for this posting.
+   *  @param docid The internal document id of the posting.
+   *  @param tf The term frequency in the document.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int tf) {
+
+    if ((this.df > 1) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensurePostingsCapacity (this.df + 1);
+    this.addSkip (this.df, docid);
+
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.positionOffsets[this.df] = this.numPositions;
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
     return true;
   }
 
+  /**
+   *  Record a skip point if the n'th posting starts a new skip block.
+   *  Subclasses that override appendPosting must call this for each
+   *  posting that they append.
+   *  @param n The index of the posting being appended.
+   *  @param docid The internal document id of the posting.
+   */
+  protected void addSkip (int n, int docid) {
+    if ((n % SKIP_INTERVAL) == 0) {
+      if (this.numSkips == this.skipDocids.length) {
+        this.skipDocids =
+          Arrays.copyOf (this.skipDocids, Math.max (4, 2 * this.numSkips));
+      }
+      this.skipDocids[this.numSkips++] = docid;
+    }
+  }
+
+  /**
+   *  Use the skip table to find where a search for a docid should start.
+   *  Every posting before the returned index has a docid less than
+   *  target, so the search can begin there instead of at index.
+   *  @param index The index of the posting where the search would start.
+   *  @param target The internal document id to search for.
+   *  @return The index of a posting, index or later.
+   */
+  public int skip (int index, int target) {
+
+    int k = index / SKIP_INTERVAL + 1;
+
+    if ((k >= this.numSkips) || (this.skipDocids[k] > target))
+      return index;
+
+    while ((k + 1 < this.numSkips) && (this.skipDocids[k + 1] <= target))
+      k ++;
+
+    return k * SKIP_INTERVAL;
+  }
+
+  /**
+   *  Make sure that the posting arrays can hold at least n postings.
+   *  @param n The required number of postings.
+   */
+  private void ensurePostingsCapacity (int n) {
+    if (n > this.docids.length) {
+      int capacity = Math.max (n, Math.max (8, this.docids.length * 2));
+      this.docids = Arrays.copyOf (this.docids, capacity);
+      this.tfs = Arrays.copyOf (this.tfs, capacity);
+      this.positionOffsets = Arrays.copyOf (this.positionOffsets, capacity);
+    }
+  }
+
+  /**
+   *  Make sure that the position array can hold at least n positions.
+   *  @param n The required number of positions.
+   */
+  private void ensurePositionsCapacity (int n) {
+    if (n > this.positions.length) {
+      int capacity = Math.max (n, Math.max (16, this.positions.length * 2));
+      this.positions = Arrays.copyOf (this.positions, capacity);
+    }
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.docids[Objects.checkIndex(n, this.df)];
+  }
+
+  /**
+   *  Get the i'th position of the term in the n'th document of the
+   *  inverted list.
+   *  @param n The index of the requested document.
+   *  @param i The index of the requested position, 0 <= i < getTf(n).
+   *  @return The position.
+   */
+  public int getPosition(int n, int i) {
+    Objects.checkIndex(i, this.getTf(n));
+    return this.positions[this.positionOffsets[n] + i];
   }
 
   /**
@@ -192,7 +329,20 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[Objects.checkIndex(n, this.df)];
+  }
+
+  /**
+   *  Get the number of bytes of heap memory that the inverted list uses.
+   *  Arrays are counted at their allocated sizes, and each object and
+   *  array is charged a 16-byte header.
+   *  @return The number of bytes.
+   */
+  public long sizeInBytes () {
+    return (16 + 5 * 16 +
+	    4L * ((long) this.docids.length + this.tfs.length +
+		  this.positionOffsets.length + this.positions.length +
+		  this.skipDocids.length));
   }
 
   /**
@@ -203,11 +353,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.getDocid(i) + ", tf: "
+          + this.getTf(i) + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.getTf(i); j++) {
+        System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
@@ -0,0 +1,468 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  An inverted list that keeps its postings compressed in memory.
+ *  Postings are grouped into blocks of BLOCK_SIZE postings.  Within a
+ *  block, docids are delta-coded from the previous posting and
+ *  positions are delta-coded within each document; all values are
+ *  stored as VByte integers.  Each block has a docid and tf section
+ *  followed by a positions section, so that reading docids does not
+ *  require decoding positions.
+ *  <p>
+ *  The accessors are the same as InvList's.  A block is decoded into a
+ *  Cursor the first time that one of its postings is accessed, and it
+ *  is kept until a posting in another block is accessed, so sequential
+ *  access decodes each block once.  Iterators keep their own cursor
+ *  (see newCursor), so iterators that share a list, e.g., from the
+ *  postings cache, don't decode each other's blocks again.  Appended
+ *  postings are buffered, not compressed, until a block is full.
+ *  </p>
+ */
+public class InvListCompressed extends InvList {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The number of postings in a compressed block.  Blocks are aligned
+   *  with the skip table, so skipping does not decode skipped blocks.
+   */
+  public static final int BLOCK_SIZE = InvList.SKIP_INTERVAL;
+
+  private static final int BLOCK_SHIFT = Integer.numberOfTrailingZeros (BLOCK_SIZE);
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+  static {
+    if (Integer.bitCount (BLOCK_SIZE) != 1) {
+      throw new IllegalStateException
+        ("InvListCompressed.BLOCK_SIZE must be a power of two.");
+    }
+  }
+
+  /**
+   *  The compressed blocks.  The docids and tfs of block b start at
+   *  bytes[blockOffsets[b]], and its positions start at
+   *  bytes[blockPositionOffsets[b]].  The first docid of each block
+   *  is stored uncompressed in blockFirstDocids[b].
+   */
+  private byte[] bytes = new byte[0];
+  private int numBytes = 0;
+  private int numBlocks = 0;
+  private int[] blockFirstDocids = new int[0];
+  private int[] blockOffsets = new int[0];
+  private int[] blockPositionOffsets = new int[0];
+
+  /**
+   *  The block that is being filled by appendPosting.
+   */
+  private int[] pendingDocids = new int[BLOCK_SIZE];
+  private int[] pendingTfs = new int[BLOCK_SIZE];
+  private int[] pendingPositionOffsets = new int[BLOCK_SIZE + 1];
+  private int[] pendingPositions = new int[BLOCK_SIZE];
+  private int numPending = 0;
+
+  /**
+   *  The cursor of the accessors that don't take one.
+   */
+  private Cursor cursor = new Cursor ();
+
+  /**
+   *  The most recently decoded block of a compressed list, for one
+   *  reader of the list.  Its positions are decoded separately, the
+   *  first time that they are needed.
+   */
+  public static class Cursor {
+    private int block = -1;
+    private boolean hasPositions = false;
+    private int[] docids = new int[BLOCK_SIZE];
+    private int[] tfs = new int[BLOCK_SIZE];
+    private int[] positionOffsets = new int[BLOCK_SIZE + 1];
+    private int[] positions = new int[BLOCK_SIZE];
+
+    /**
+     *  Get the number of bytes of heap memory that the cursor uses.
+     *  @return The number of bytes.
+     */
+    long sizeInBytes () {
+      return (5 * 16 + 4L * (this.docids.length + this.tfs.length +
+                             this.positionOffsets.length +
+                             this.positions.length));
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get an empty inverted list.
+   *  @param fieldString The field that the term occurs in.
+   */
+  public InvListCompressed (String fieldString) {
+    super (fieldString);
+  }
+
+  /**
+   *  Get an inverted list from the index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvListCompressed (String termString, String fieldString)
+    throws IOException {
+    this (termString, fieldString, true);
+  }
+
+  /**
+   *  Get an inverted list from the index, optionally without positions.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param withPositions If false, positions are not read from the index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvListCompressed (String termString, String fieldString,
+			    boolean withPositions)
+    throws IOException {
+
+    super (fieldString);
+    this.term_word = termString;
+
+    Term term = new Term (fieldString, new BytesRef (termString));
+
+    if (Idx.INDEXREADER.docFreq (term) < 1)
+      return;
+
+    this.readPostings (term, withPositions);
+  }
+
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.
+   *  @param docid The internal document id of the posting.
+   *  @param locations An array of positions where the term occurs.
+   *  @param count The number of positions to use from locations.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] locations, int count) {
+    return this.append (docid, count, locations, count);
+  }
+
+  /**
+   *  Append a posting without positions to the posting list.  Posting
+   *  must be appended in docid order, otherwise this method fails.
+   *  getPosition must not be used for this posting.
+   *  @param docid The internal document id of the posting.
+   *  @param tf The term frequency in the document.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int tf) {
+    return this.append (docid, tf, null, 0);
+  }
+
+  /**
+   *  Append a posting to the pending block, and compress the block if
+   *  it is full.
+   *  @param docid The internal document id of the posting.
+   *  @param tf The term frequency in the document.
+   *  @param locations An array of positions, or null.
+   *  @param count The number of positions to use from locations.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  private boolean append (int docid, int tf, int[] locations, int count) {
+
+    if ((this.df > 1) &&
+	(this.getDocid (this.df - 1) >= docid))
+      return false;
+
+    this.addSkip (this.df, docid);
+
+    int start = this.pendingPositionOffsets[this.numPending];
+
+    if (start + count > this.pendingPositions.length) {
+      this.pendingPositions =
+	Arrays.copyOf (this.pendingPositions,
+		       Math.max (start + count, 2 * this.pendingPositions.length));
+    }
+
+    this.pendingDocids[this.numPending] = docid;
+    this.pendingTfs[this.numPending] = tf;
+    if (count > 0)
+      System.arraycopy (locations, 0, this.pendingPositions, start, count);
+    this.numPending ++;
+    this.pendingPositionOffsets[this.numPending] = start + count;
+
+    this.df ++;
+    this.ctf += tf;
+
+    if (this.numPending == BLOCK_SIZE)
+      this.compressPending ();
+
+    return true;
+  }
+
+  /**
+   *  Get the number of bytes used by the compressed blocks.  Postings
+   *  that are still buffered are not included.
+   *  @return The number of bytes.
+   */
+  public int compressedBytes () {
+    return this.numBytes;
+  }
+
+  /**
+   *  Get the number of bytes of heap memory that the inverted list uses,
+   *  including the buffers for pending blocks and the list's own
+   *  cursor.  Iterators' cursors are not included.
+   *  @return The number of bytes.
+   */
+  public long sizeInBytes () {
+    return (super.sizeInBytes () + 8 * 16 + this.bytes.length +
+	    4L * ((long) this.blockFirstDocids.length +
+		  this.blockOffsets.length + this.blockPositionOffsets.length +
+		  this.pendingDocids.length + this.pendingTfs.length +
+		  this.pendingPositionOffsets.length +
+		  this.pendingPositions.length) +
+	    this.cursor.sizeInBytes ());
+  }
+
+  /**
+   *  Get a cursor for reading the list, with no decoded block.
+   *  @return The cursor.
+   */
+  public Cursor newCursor () {
+    return new Cursor ();
+  }
+
+  /**
+   *  Compress the buffered postings into a new block.
+   */
+  private void compressPending () {
+
+    if (this.numBlocks == this.blockFirstDocids.length) {
+      int capacity = Math.max (4, 2 * this.numBlocks);
+      this.blockFirstDocids = Arrays.copyOf (this.blockFirstDocids, capacity);
+      this.blockOffsets = Arrays.copyOf (this.blockOffsets, capacity);
+      this.blockPositionOffsets =
+	Arrays.copyOf (this.blockPositionOffsets, capacity);
+    }
+
+    //  The docid and tf section.  The first docid is stored in
+    //  blockFirstDocids, so its delta is not written.
+
+    this.blockFirstDocids[this.numBlocks] = this.pendingDocids[0];
+    this.blockOffsets[this.numBlocks] = this.numBytes;
+
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      if (i > 0)
+	this.writeVInt (this.pendingDocids[i] - this.pendingDocids[i - 1]);
+      this.writeVInt (this.pendingTfs[i]);
+    }
+
+    //  The positions section.  Positions are usually ascending, but
+    //  zig-zag coding keeps the format correct if they are not.
+
+    this.blockPositionOffsets[this.numBlocks] = this.numBytes;
+
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      int prev = 0;
+      for (int j = this.pendingPositionOffsets[i];
+	   j < this.pendingPositionOffsets[i + 1]; j++) {
+	int delta = this.pendingPositions[j] - prev;
+	this.writeVInt ((delta << 1) ^ (delta >> 31));
+	prev = this.pendingPositions[j];
+      }
+    }
+
+    this.numBlocks ++;
+    this.numPending = 0;
+    this.pendingPositionOffsets[0] = 0;
+  }
+
+  /**
+   *  Decode the docids and tfs of a block into a cursor, unless it is
+   *  already decoded.
+   *  @param c The cursor.
+   *  @param block The index of a compressed block.
+   */
+  private void decodeBlock (Cursor c, int block) {
+
+    if (block == c.block)
+      return;
+
+    int offset = this.blockOffsets[block];
+    int docid = this.blockFirstDocids[block];
+    int positionOffset = 0;
+
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      if (i > 0) {
+	int delta = 0;
+	for (int shift = 0; ; shift += 7) {
+	  byte b = this.bytes[offset++];
+	  delta |= (b & 0x7F) << shift;
+	  if (b >= 0)
+	    break;
+	}
+	docid += delta;
+      }
+
+      int tf = 0;
+      for (int shift = 0; ; shift += 7) {
+	byte b = this.bytes[offset++];
+	tf |= (b & 0x7F) << shift;
+	if (b >= 0)
+	  break;
+      }
+
+      c.docids[i] = docid;
+      c.tfs[i] = tf;
+      c.positionOffsets[i] = positionOffset;
+      positionOffset += tf;
+    }
+
+    c.positionOffsets[BLOCK_SIZE] = positionOffset;
+    c.block = block;
+    c.hasPositions = false;
+  }
+
+  /**
+   *  Decode the positions of a cursor's decoded block, unless they are
+   *  already decoded.
+   *  @param c The cursor.
+   */
+  private void decodePositions (Cursor c) {
+
+    if (c.hasPositions)
+      return;
+
+    int total = c.positionOffsets[BLOCK_SIZE];
+
+    if (total > c.positions.length)
+      c.positions = new int[Math.max (total, 2 * c.positions.length)];
+
+    int offset = this.blockPositionOffsets[c.block];
+
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      int position = 0;
+      for (int j = c.positionOffsets[i];
+	   j < c.positionOffsets[i + 1]; j++) {
+	int code = 0;
+	for (int shift = 0; ; shift += 7) {
+	  byte b = this.bytes[offset++];
+	  code |= (b & 0x7F) << shift;
+	  if (b >= 0)
+	    break;
+	}
+	position += (code >>> 1) ^ -(code & 1);
+	c.positions[j] = position;
+      }
+    }
+
+    c.hasPositions = true;
+  }
+
+  /**
+   *  Get the n'th document id from the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The internal document id.
+   */
+  public int getDocid (int n) {
+    return this.getDocid (this.cursor, n);
+  }
+
+  /**
+   *  Get the n'th document id from the inverted list, decoding into a
+   *  cursor.
+   *  @param c A cursor from newCursor.
+   *  @param n The index of the requested document.
+   *  @return The internal document id.
+   */
+  public int getDocid (Cursor c, int n) {
+    int block = Objects.checkIndex (n, this.df) >>> BLOCK_SHIFT;
+
+    if (block == this.numBlocks)
+      return this.pendingDocids[n & BLOCK_MASK];
+
+    this.decodeBlock (c, block);
+    return c.docids[n & BLOCK_MASK];
+  }
+
+  /**
+   *  Get the i'th position of the term in the n'th document of the
+   *  inverted list.
+   *  @param n The index of the requested document.
+   *  @param i The index of the requested position, 0 <= i < getTf(n).
+   *  @return The position.
+   */
+  public int getPosition (int n, int i) {
+    return this.getPosition (this.cursor, n, i);
+  }
+
+  /**
+   *  Get the i'th position of the term in the n'th document of the
+   *  inverted list, decoding into a cursor.
+   *  @param c A cursor from newCursor.
+   *  @param n The index of the requested document.
+   *  @param i The index of the requested position, 0 <= i < getTf(n).
+   *  @return The position.
+   */
+  public int getPosition (Cursor c, int n, int i) {
+    Objects.checkIndex (i, this.getTf (c, n));
+
+    int block = n >>> BLOCK_SHIFT;
+
+    if (block == this.numBlocks)
+      return this.pendingPositions[this.pendingPositionOffsets[n & BLOCK_MASK] + i];
+
+    this.decodeBlock (c, block);
+    this.decodePositions (c);
+    return c.positions[c.positionOffsets[n & BLOCK_MASK] + i];
+  }
+
+  /**
+   *  Get the term frequency in the n'th document of the inverted list.
+   *  @param n The index of the requested document term frequency.
+   *  @return The document's term frequency.
+   */
+  public int getTf (int n) {
+    return this.getTf (this.cursor, n);
+  }
+
+  /**
+   *  Get the term frequency in the n'th document of the inverted list,
+   *  decoding into a cursor.
+   *  @param c A cursor from newCursor.
+   *  @param n The index of the requested document term frequency.
+   *  @return The document's term frequency.
+   */
+  public int getTf (Cursor c, int n) {
+    int block = Objects.checkIndex (n, this.df) >>> BLOCK_SHIFT;
+
+    if (block == this.numBlocks)
+      return this.pendingTfs[n & BLOCK_MASK];
+
+    this.decodeBlock (c, block);
+    return c.tfs[n & BLOCK_MASK];
+  }
+
+  /**
+   *  Append a VByte integer to the compressed blocks.  The low seven
+   *  bits are written first; the high bit marks continuation bytes.
+   *  @param value A non-negative integer.
+   */
+  private void writeVInt (int value) {
+
+    if (this.numBytes + 5 > this.bytes.length)
+      this.bytes = Arrays.copyOf (this.bytes,
+				  Math.max (64, 2 * this.bytes.length));
+
+    while ((value & ~0x7F) != 0) {
+      this.bytes[this.numBytes++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    this.bytes[this.numBytes++] = (byte) value;
+  }
+}
@@ -0,0 +1,221 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  An inverted list whose postings are stored off the Java heap, in
+ *  memory from a PostingsArena.  The layout is the same as InvList's
+ *  parallel arrays.  The list is only valid until the arena is reset,
+ *  i.e., until the query that created it finishes.
+ */
+public class InvListOffHeap extends InvList {
+
+  //  --------------- Constants and variables -----------------------
+
+  private PostingsArena arena;
+
+  /**
+   *  Postings are stored column-wise, as in InvList.  The n'th posting
+   *  is docids[n] and tfs[n]; its positions start at
+   *  positions[positionOffsets[n]].
+   */
+  private IntBuffer docids = null;
+  private IntBuffer tfs = null;
+  private IntBuffer positionOffsets = null;
+  private IntBuffer positions = null;
+  private int numPositions = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get an empty inverted list.
+   *  @param fieldString The field that the term occurs in.
+   *  @param arena The arena that provides the list's memory.
+   */
+  public InvListOffHeap (String fieldString, PostingsArena arena) {
+    super (fieldString);
+    this.arena = arena;
+  }
+
+  /**
+   *  Get an inverted list from the index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param withPositions If false, positions are not read from the index.
+   *  @param arena The arena that provides the list's memory.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvListOffHeap (String termString, String fieldString,
+			 boolean withPositions, PostingsArena arena)
+    throws IOException {
+
+    super (fieldString);
+    this.term_word = termString;
+    this.arena = arena;
+
+    Term term = new Term (fieldString, new BytesRef (termString));
+    int termDf = Idx.INDEXREADER.docFreq (term);
+
+    if (termDf < 1)
+      return;
+
+    //  The index statistics give the final size of the list, so the
+    //  buffers are allocated once.
+
+    this.ensurePostingsCapacity (termDf);
+
+    if (withPositions)
+      this.ensurePositionsCapacity (
+        (int) Math.min (Idx.INDEXREADER.totalTermFreq (term), Integer.MAX_VALUE));
+
+    this.readPostings (term, withPositions);
+  }
+
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.
+   *  @param docid The internal document id of the posting.
+   *  @param locations An array of positions where the term occurs.
+   *  @param count The number of positions to use from locations.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] locations, int count) {
+
+    if (! this.appendDocid (docid, count))
+      return false;
+
+    if (count > 0) {
+      this.ensurePositionsCapacity (this.numPositions + count);
+      this.positions.position (this.numPositions);
+      this.positions.put (locations, 0, count);
+      this.numPositions += count;
+    }
+    return true;
+  }
+
+  /**
+   *  Append a posting without positions to the posting list.  Posting
+   *  must be appended in docid order, otherwise this method fails.
+   *  getPosition must not be used for this posting.
+   *  @param docid The internal document id of the posting.
+   *  @param tf The term frequency in the document.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int tf) {
+    return this.appendDocid (docid, tf);
+  }
+
+  /**
+   *  Append the docid and tf of a posting.
+   *  @param docid The internal document id of the posting.
+   *  @param tf The term frequency in the document.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  private boolean appendDocid (int docid, int tf) {
+
+    if ((this.df > 1) &&
+	(this.docids.get (this.df - 1) >= docid))
+      return false;
+
+    this.ensurePostingsCapacity (this.df + 1);
+    this.addSkip (this.df, docid);
+
+    this.docids.put (this.df, docid);
+    this.tfs.put (this.df, tf);
+    this.positionOffsets.put (this.df, this.numPositions);
+
+    this.df ++;
+    this.ctf += tf;
+    return true;
+  }
+
+  /**
+   *  Make sure that the posting buffers can hold at least n postings.
+   *  Growing a buffer allocates a new one from the arena; the old one
+   *  is released when the arena is reset.
+   *  @param n The required number of postings.
+   */
+  private void ensurePostingsCapacity (int n) {
+
+    int capacity = (this.docids == null) ? 0 : this.docids.capacity ();
+
+    if (n > capacity) {
+      capacity = Math.max (n, Math.max (8, capacity * 2));
+      this.docids = this.grow (this.docids, capacity, this.df);
+      this.tfs = this.grow (this.tfs, capacity, this.df);
+      this.positionOffsets = this.grow (this.positionOffsets, capacity, this.df);
+    }
+  }
+
+  /**
+   *  Make sure that the position buffer can hold at least n positions.
+   *  @param n The required number of positions.
+   */
+  private void ensurePositionsCapacity (int n) {
+
+    int capacity = (this.positions == null) ? 0 : this.positions.capacity ();
+
+    if (n > capacity) {
+      capacity = Math.max (n, Math.max (16, capacity * 2));
+      this.positions = this.grow (this.positions, capacity, this.numPositions);
+    }
+  }
+
+  /**
+   *  Allocate a larger buffer from the arena and copy a prefix of the
+   *  old buffer into it.
+   *  @param old The old buffer, or null.
+   *  @param capacity The capacity of the new buffer.
+   *  @param used The number of ints to copy from the old buffer.
+   *  @return The new buffer.
+   */
+  private IntBuffer grow (IntBuffer old, int capacity, int used) {
+
+    IntBuffer buffer = this.arena.allocateInts (capacity);
+
+    if (used > 0) {
+      IntBuffer src = old.duplicate ();
+      src.position (0);
+      src.limit (used);
+      buffer.put (src);
+    }
+
+    return buffer;
+  }
+
+  /**
+   *  Get the n'th document id from the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The internal document id.
+   */
+  public int getDocid (int n) {
+    return this.docids.get (Objects.checkIndex (n, this.df));
+  }
+
+  /**
+   *  Get the i'th position of the term in the n'th document of the
+   *  inverted list.
+   *  @param n The index of the requested document.
+   *  @param i The index of the requested position, 0 <= i < getTf(n).
+   *  @return The position.
+   */
+  public int getPosition (int n, int i) {
+    Objects.checkIndex (i, this.getTf (n));
+    return this.positions.get (this.positionOffsets.get (n) + i);
+  }
+
+  /**
+   *  Get the term frequency in the n'th document of the inverted list.
+   *  @param n The index of the requested document term frequency.
+   *  @return The document's term frequency.
+   */
+  public int getTf (int n) {
+    return this.tfs.get (Objects.checkIndex (n, this.df));
+  }
+}
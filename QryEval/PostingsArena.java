@@ -0,0 +1,154 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.nio.*;
+import java.util.*;
+
+/**
+ *  An arena of off-heap (direct) memory for inverted lists.  Memory is
+ *  allocated from large direct ByteBuffer chunks by bumping a pointer,
+ *  and it is all released at once by reset, which is called when a
+ *  query finishes.  Up to a limit, regular-sized chunks are kept and
+ *  reused by the next query, so a query's postings neither live on the
+ *  Java heap nor cause repeated direct-memory allocation.  Oversized
+ *  chunks, and chunks beyond the limit, are dropped by reset, so one
+ *  large query doesn't pin its direct memory for the life of the JVM;
+ *  their memory is freed when the garbage collector reclaims them.
+ *  <p>
+ *  Buffers that the arena returns are invalid after reset; they must
+ *  not be used by later queries.
+ *  </p>
+ */
+public class PostingsArena {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The size of an arena chunk, in bytes.  Larger requests get a
+   *  chunk of their own.
+   */
+  public static final int CHUNK_SIZE = 1 << 22;
+
+  /**
+   *  The default number of bytes of chunks that reset keeps.
+   */
+  public static final long DEFAULT_RETAINED_SIZE = 4L * CHUNK_SIZE;
+
+  private long retainedSize;
+  private ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer> ();
+  private int chunkIndex = 0;
+  private long bytesAllocated = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an empty arena that keeps up to DEFAULT_RETAINED_SIZE bytes
+   *  of chunks between queries.
+   */
+  public PostingsArena () {
+    this (DEFAULT_RETAINED_SIZE);
+  }
+
+  /**
+   *  Create an empty arena.
+   *  @param retainedSize The number of bytes of chunks that reset keeps
+   *  for the next query.
+   */
+  public PostingsArena (long retainedSize) {
+    if (retainedSize < 0) {
+      throw new IllegalArgumentException
+        ("The retained size of a postings arena can't be negative.");
+    }
+    this.retainedSize = retainedSize;
+  }
+
+  /**
+   *  Allocate an int buffer from the arena.  The buffer's contents are
+   *  undefined.
+   *  @param n The number of ints.
+   *  @return A buffer of n ints.
+   */
+  public IntBuffer allocateInts (int n) {
+
+    int bytes = Math.multiplyExact (n, Integer.BYTES);
+
+    //  Use the first chunk, starting with the current one, that has
+    //  room.  If there is none, allocate a new chunk.
+
+    while ((this.chunkIndex < this.chunks.size ()) &&
+	   (this.chunks.get (this.chunkIndex).remaining () < bytes)) {
+      this.chunkIndex ++;
+    }
+
+    if (this.chunkIndex == this.chunks.size ()) {
+      this.chunks.add (ByteBuffer.allocateDirect (Math.max (CHUNK_SIZE, bytes)));
+    }
+
+    ByteBuffer chunk = this.chunks.get (this.chunkIndex);
+    ByteBuffer region = chunk.duplicate ();
+    region.limit (chunk.position () + bytes);
+    chunk.position (chunk.position () + bytes);
+    this.bytesAllocated += bytes;
+
+    return region.slice ().order (ByteOrder.nativeOrder ()).asIntBuffer ();
+  }
+
+  /**
+   *  Get the number of bytes in use, i.e., allocated since the last
+   *  reset.
+   *  @return The number of bytes.
+   */
+  public long getBytesAllocated () {
+    return this.bytesAllocated;
+  }
+
+  /**
+   *  Get the number of bytes of direct memory that the arena holds.
+   *  After a reset, this is the number of bytes that were retained for
+   *  the next query.
+   *  @return The number of bytes.
+   */
+  public long getBytesReserved () {
+    long bytes = 0;
+
+    for (ByteBuffer chunk : this.chunks) {
+      bytes += chunk.capacity ();
+    }
+
+    return bytes;
+  }
+
+  /**
+   *  Release all allocations, and drop oversized chunks and the chunks
+   *  beyond the retained size.  Buffers that were allocated before the
+   *  reset must not be used after it.
+   */
+  public void reset () {
+
+    ArrayList<ByteBuffer> retained = new ArrayList<ByteBuffer> ();
+    long bytes = 0;
+
+    for (ByteBuffer chunk : this.chunks) {
+      if ((chunk.capacity () == CHUNK_SIZE) &&
+          (bytes + CHUNK_SIZE <= this.retainedSize)) {
+        chunk.clear ();
+        retained.add (chunk);
+        bytes += CHUNK_SIZE;
+      }
+    }
+
+    this.chunks = retained;
+    this.chunkIndex = 0;
+    this.bytesAllocated = 0;
+  }
+
+  /**
+   *  Release all allocations and drop every chunk.  The arena can
+   *  still be used; it allocates new chunks as they are needed.
+   */
+  public void close () {
+    this.chunks = new ArrayList<ByteBuffer> ();
+    this.chunkIndex = 0;
+    this.bytesAllocated = 0;
+  }
+}
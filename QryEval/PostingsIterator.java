@@ -0,0 +1,291 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  A streaming (non-materialized) iterator over the postings of a
+ *  term.  Lucene indexes have segments, so the iterator walks the
+ *  PostingsEnum of each LeafReaderContext in turn, but it presents
+ *  one list with internal (index-wide) document ids.  Nothing is read
+ *  until the iterator is advanced, and advance uses PostingsEnum.advance,
+ *  so Lucene's skip data decides how much of the list is decoded.
+ *  <p>
+ *  Positions of the current document are decoded lazily, the first
+ *  time that they are requested.
+ *  </p>
+ *  <p>
+ *  An iterator over one segment (see SegmentContext) may instead use
+ *  segment-local document ids, for segment-local evaluation.
+ *  </p>
+ *  <p>
+ *  If the iterator is opened with impacts, each segment's postings are
+ *  read through an ImpactsEnum, and advanceShallow and getImpacts give
+ *  the largest (tf, norm) pairs of the postings block that contains a
+ *  document, e.g., to bound its score without decoding the block.
+ *  </p>
+ */
+public class PostingsIterator {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The document id returned when the iterator is exhausted.
+   */
+  public static final int NO_MORE_DOCS = DocIdSetIterator.NO_MORE_DOCS;
+
+  private Term term;
+  private int flags;
+  private List<LeafReaderContext> leaves;
+  private boolean withImpacts = false;
+  private boolean segmentDocids = false;
+
+  private int leafIndex = -1;
+  private PostingsEnum postings = null;
+  private int docBase = 0;
+  private int docid = -1;
+
+  private int[] positions = new int[16];
+  private int positionsRead = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Prepare to iterate over the postings of a term in the current index.
+   *  The iterator does not point to a document until it is advanced.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param flags PostingsEnum flags, e.g., PostingsEnum.POSITIONS.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public PostingsIterator (String termString, String fieldString, int flags)
+    throws IOException {
+    this (termString, fieldString, flags, Idx.INDEXREADER.leaves ());
+  }
+
+  /**
+   *  Prepare to iterate over the postings of a term in some of the
+   *  segments of the current index, e.g., just one segment.
+   *  Document ids are still internal (index-wide) document ids.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param flags PostingsEnum flags, e.g., PostingsEnum.POSITIONS.
+   *  @param leaves The segments to iterate over, in docid order.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public PostingsIterator (String termString, String fieldString, int flags,
+                           List<LeafReaderContext> leaves)
+    throws IOException {
+    this (termString, fieldString, flags, leaves, false);
+  }
+
+  /**
+   *  Prepare to iterate over the postings of a term in some of the
+   *  segments of the current index, optionally with impacts.
+   *  Document ids are still internal (index-wide) document ids.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param flags PostingsEnum flags, e.g., PostingsEnum.POSITIONS.
+   *  @param leaves The segments to iterate over, in docid order.
+   *  @param withImpacts If true, postings are read with their impacts.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public PostingsIterator (String termString, String fieldString, int flags,
+                           List<LeafReaderContext> leaves, boolean withImpacts)
+    throws IOException {
+
+    this.term = new Term (fieldString, new BytesRef (termString));
+    this.flags = flags;
+    this.leaves = leaves;
+    this.withImpacts = withImpacts;
+    this.nextLeaf ();
+  }
+
+  /**
+   *  Prepare to iterate over the postings of a term in one segment of
+   *  the current index, with segment-local document ids, optionally
+   *  with impacts.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param flags PostingsEnum flags, e.g., PostingsEnum.POSITIONS.
+   *  @param segment The segment.
+   *  @param withImpacts If true, postings are read with their impacts.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public PostingsIterator (String termString, String fieldString, int flags,
+                           SegmentContext segment, boolean withImpacts)
+    throws IOException {
+
+    this.term = new Term (fieldString, new BytesRef (termString));
+    this.flags = flags;
+    this.leaves = Collections.singletonList (segment.getLeaf ());
+    this.withImpacts = withImpacts;
+    this.segmentDocids = true;
+    this.nextLeaf ();
+  }
+
+  /**
+   *  Advance to the first document whose id is greater than or equal
+   *  to the target.  If the iterator is already there, it does not move.
+   *  @param target An internal document id.
+   *  @return The new document id, or NO_MORE_DOCS.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int advance (int target) throws IOException {
+
+    if (this.docid >= target) {
+      return this.docid;
+    }
+
+    //  Skip within the current segment.  If the segment is exhausted,
+    //  continue with the next segment that has postings.
+
+    while (this.postings != null) {
+      int leafTarget = target - this.docBase;
+      int leafDocid = (leafTarget <= this.postings.docID ()) ?
+	this.postings.nextDoc () :
+	this.postings.advance (leafTarget);
+
+      if (leafDocid != NO_MORE_DOCS) {
+	this.docid = this.docBase + leafDocid;
+	this.positionsRead = 0;
+	return this.docid;
+      }
+
+      this.nextLeaf ();
+    }
+
+    this.docid = NO_MORE_DOCS;
+    return this.docid;
+  }
+
+  /**
+   *  Prepare the impacts of the postings block that contains the
+   *  target, without moving the iterator.  The target must be in the
+   *  iterator's current segment, at or after the current document, and
+   *  the iterator must have been opened with impacts.
+   *  @param target An internal document id.
+   *  @return The internal id of the last document that the block's
+   *  impacts cover.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int advanceShallow (int target) throws IOException {
+
+    ImpactsEnum impacts = (ImpactsEnum) this.postings;
+    impacts.advanceShallow (target - this.docBase);
+    int upTo = impacts.getImpacts ().getDocIdUpTo (0);
+
+    return (upTo == NO_MORE_DOCS) ? NO_MORE_DOCS : this.docBase + upTo;
+  }
+
+  /**
+   *  Get the impacts of the postings block that advanceShallow prepared:
+   *  the (tf, norm) pairs that may give a document in the block the
+   *  highest score.
+   *  @return The impacts.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public List<Impact> getImpacts () throws IOException {
+    return ((ImpactsEnum) this.postings).getImpacts ().getImpacts (0);
+  }
+
+  /**
+   *  Get the id of the current document.
+   *  @return An internal document id, -1 if the iterator has not been
+   *  advanced yet, or NO_MORE_DOCS if the iterator is exhausted.
+   */
+  public int docID () {
+    return this.docid;
+  }
+
+  /**
+   *  Get the term frequency in the current document.
+   *  @return The term frequency.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int freq () throws IOException {
+    return this.postings.freq ();
+  }
+
+  /**
+   *  Get the i'th position of the term in the current document.  Positions
+   *  are decoded from the index on demand, and then remembered until the
+   *  iterator moves to another document.
+   *  @param i The index of the position, 0 &lt;= i &lt; freq().
+   *  @return The position.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getPosition (int i) throws IOException {
+
+    if (i >= this.positions.length) {
+      this.positions = Arrays.copyOf (this.positions,
+				      Math.max (i + 1, 2 * this.positions.length));
+    }
+
+    while (this.positionsRead <= i) {
+      this.positions[this.positionsRead++] = this.postings.nextPosition ();
+    }
+
+    return this.positions[i];
+  }
+
+  /**
+   *  Advance to the next document.
+   *  @return The new document id, or NO_MORE_DOCS.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int nextDoc () throws IOException {
+    if (this.docid == NO_MORE_DOCS) {
+      return NO_MORE_DOCS;
+    }
+    return this.advance (this.docid + 1);
+  }
+
+  /**
+   *  Open the postings of the next segment that contains the term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void nextLeaf () throws IOException {
+
+    this.postings = null;
+
+    while (++ this.leafIndex < this.leaves.size ()) {
+      LeafReaderContext context = this.leaves.get (this.leafIndex);
+      PostingsEnum p = this.withImpacts ?
+	this.impacts (context) :
+	context.reader ().postings (this.term, this.flags);
+
+      if (p != null) {
+	this.postings = p;
+	this.docBase = this.segmentDocids ? 0 : context.docBase;
+	return;
+      }
+    }
+  }
+
+  /**
+   *  Get the postings of the term in a segment, with impacts.
+   *  @param context The segment.
+   *  @return The postings, or null if the segment doesn't contain the term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private ImpactsEnum impacts (LeafReaderContext context) throws IOException {
+
+    Terms terms = context.reader ().terms (this.term.field ());
+
+    if (terms == null)
+      return null;
+
+    TermsEnum termsEnum = terms.iterator ();
+
+    if (! termsEnum.seekExact (this.term.bytes ()))
+      return null;
+
+    return termsEnum.impacts (this.flags);
+  }
+}
@@ -58,7 +58,9 @@ import java.util.*;
  *  possible to produce them in a document-at-a-time mode because
  *  the df and ctf statistics are not known until the inverted list
  *  is fully constructed.  QryIop operators provide a document-at-a-time
- *  interface to the inverted lists via docIterators.
+ *  interface to the inverted lists via docIterators.  A QryIopTerm
+ *  may instead stream its postings from the index, because its df
+ *  and ctf statistics are available from the index.
  *  </p><p>
  *  The data structure that stores query arguments (args) is accessible
  *  by subclasses.  If it is accessed via a standard Java iterator, the
@@ -245,6 +247,21 @@ public abstract class Qry {
    *  @return True if the query matches, otherwise false.
    */
   protected boolean docIteratorHasMatchAll (RetrievalModel r) {
+    return this.docIteratorHasMatchAll (r, null);
+  }
+
+  /**
+   *  docIteratorHasMatchAll, but the arguments are examined in a given
+   *  order, e.g., rarest first.  The first argument in the order
+   *  proposes each candidate document and the others must match it,
+   *  so it should be the one with the fewest matches.  Every order
+   *  finds the same documents, in the same order.
+   *  @param r The retrieval model that determines what is a match
+   *  @param order The indexes of the arguments, in the order to examine
+   *  them, or null for the order of the arguments.
+   *  @return True if the query matches, otherwise false.
+   */
+  protected boolean docIteratorHasMatchAll (RetrievalModel r, int[] order) {
 
     boolean matchFound = false;
 
@@ -254,7 +271,7 @@ public abstract class Qry {
 
       // Get the docid of the first query argument.
       
-      Qry q_0 = this.args.get (0);
+      Qry q_0 = this.args.get ((order == null) ? 0 : order[0]);
 
       if (! q_0.docIteratorHasMatch (r)) {
         return false;
@@ -268,7 +285,7 @@ public abstract class Qry {
       matchFound = true;
 
       for (int i=1; i<this.args.size(); i++) {
-        Qry q_i = this.args.get(i);
+        Qry q_i = this.args.get((order == null) ? i : order[i]);
 
         q_i.docIteratorAdvanceTo (docid_0);
 
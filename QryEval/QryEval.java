@@ -8,6 +8,7 @@ import java.io.*;
 import java.util.*;
 import java.nio.charset.*;
 import ciir.umass.edu.eval.Evaluator;
+import org.apache.lucene.index.LeafReaderContext;
 
 /**
  *  This software illustrates the architecture for the portion of a
@@ -67,6 +68,17 @@ public class QryEval {
 
     Idx.open (parameters.get ("indexPath"));
 
+    if (parameters.containsKey ("postings:cacheSize")) {
+      double megabytes =
+        Double.parseDouble (parameters.get ("postings:cacheSize"));
+      Idx.setPostingsCacheSize ((long) (megabytes * 1024 * 1024));
+    }
+
+    if (parameters.containsKey ("externalIdColumnPath")) {
+      Idx.setExternalIdColumn
+        (ExternalIdColumn.open (parameters.get ("externalIdColumnPath")));
+    }
+
     
     
 
@@ -89,6 +101,10 @@ public class QryEval {
     
     timer.stop ();
     System.out.println ("Time:  " + timer);
+
+    if (parameters.containsKey ("postings:cacheSize")) {
+      System.out.println (Idx.getPostingsCacheStatistics ());
+    }
   }
 
   private static class QueryAndIntents {
@@ -808,7 +824,7 @@ public class QryEval {
         ScoreList sl = processQuery(query, topN, bm25);
         for (int i = 0; i < sl.size(); ++i) {
           int docid = sl.getDocid(i); 
-          String externalDocid = Idx.getExternalDocid(docid);
+          String externalDocid = sl.getExternalDocid(i);
           FeatureVector fv = new FeatureVector();
           fvfls.add(new FeatureVectorFileLine(0, docid, externalDocid, queryId, fv));
         }
@@ -958,6 +974,7 @@ public class QryEval {
     RetrievalModelBM25 bm25 = new RetrievalModelBM25(Double.parseDouble(parameters.get("BM25:k_1")),
                                                  Double.parseDouble(parameters.get("BM25:b")),
                                                  Double.parseDouble(parameters.get("BM25:k_3")));
+    initializeEvaluationOptions (parameters, bm25);
 
     Map<String, ArrayList<FeatureVectorFileLine>> mappings = initializeFeatureVectors(parameters.get("ltr:trainingQrelsFile"));
 
@@ -1078,6 +1095,10 @@ public class QryEval {
     } else if (modelString.equals("indri")) {
       model = new RetrievalModelIndri(Integer.parseInt(parameters.get("Indri:mu")), 
                                       Double.parseDouble(parameters.get("Indri:lambda")));
+      if (parameters.containsKey ("Indri:logScores")) {
+        ((RetrievalModelIndri) model).logScores =
+          Boolean.parseBoolean (parameters.get ("Indri:logScores"));
+      }
     } else if (modelString.equals("bm25")) {
       model = new RetrievalModelBM25(Double.parseDouble(parameters.get("BM25:k_1")),
                                      Double.parseDouble(parameters.get("BM25:b")),
@@ -1088,10 +1109,162 @@ public class QryEval {
       throw new IllegalArgumentException
         ("Unknown retrieval model " + parameters.get("retrievalAlgorithm"));
     }
-      
+
+    initializeEvaluationOptions (parameters, model);
     return model;
   }
 
+  /**
+   *  Set the query evaluation options of a retrieval model from the
+   *  parameter file.  These options change how queries are evaluated,
+   *  not the results, except that score-at-a-time evaluation over an
+   *  impact index (postings:impactIndex) gives approximate rankings.
+   *  @param parameters The parameters from the parameter file
+   *  @param model The retrieval model to configure
+   *  @throws IOException Error reading the impact index
+   */
+  private static void initializeEvaluationOptions (Map<String, String> parameters,
+                                                   RetrievalModel model)
+    throws IOException {
+
+    if (parameters.containsKey ("postings:iterator")) {
+      String iterator = parameters.get ("postings:iterator").toLowerCase();
+
+      if (iterator.equals ("streaming")) {
+        model.streamingTerms = true;
+      } else if (! iterator.equals ("materialized")) {
+        throw new IllegalArgumentException
+          ("Unknown postings:iterator " + parameters.get ("postings:iterator"));
+      }
+    }
+
+    if (parameters.containsKey ("postings:format")) {
+      String format = parameters.get ("postings:format").toLowerCase();
+
+      if (format.equals ("compressed")) {
+        model.compressedPostings = true;
+      } else if (format.equals ("offheap")) {
+        if (parameters.containsKey ("postings:arenaRetained")) {
+          double megabytes =
+            Double.parseDouble (parameters.get ("postings:arenaRetained"));
+          model.postingsArena =
+            new PostingsArena ((long) (megabytes * 1024 * 1024));
+        } else {
+          model.postingsArena = new PostingsArena ();
+        }
+      } else if (! format.equals ("array")) {
+        throw new IllegalArgumentException
+          ("Unknown postings:format " + parameters.get ("postings:format"));
+      }
+    }
+
+    if (parameters.containsKey ("postings:advance")) {
+      String advance = parameters.get ("postings:advance").toLowerCase();
+
+      if (advance.equals ("galloping")) {
+        model.gallopingAdvance = true;
+      } else if (! advance.equals ("linear")) {
+        throw new IllegalArgumentException
+          ("Unknown postings:advance " + parameters.get ("postings:advance"));
+      }
+    }
+
+    if (parameters.containsKey ("postings:scope")) {
+      String scope = parameters.get ("postings:scope").toLowerCase();
+
+      if (scope.equals ("segment")) {
+        model.segmentLocal = true;
+      } else if (! scope.equals ("index")) {
+        throw new IllegalArgumentException
+          ("Unknown postings:scope " + parameters.get ("postings:scope"));
+      }
+    }
+
+    if (parameters.containsKey ("postings:pruning")) {
+      String pruning = parameters.get ("postings:pruning").toLowerCase();
+
+      if (pruning.equals ("maxscore")) {
+        model.maxScorePruning = true;
+      } else if (pruning.equals ("bmw")) {
+        model.blockMaxWandPruning = true;
+      } else if (! pruning.equals ("none")) {
+        throw new IllegalArgumentException
+          ("Unknown postings:pruning " + parameters.get ("postings:pruning"));
+      }
+    }
+
+    if (parameters.containsKey ("postings:traversal")) {
+      String traversal = parameters.get ("postings:traversal").toLowerCase();
+
+      if (traversal.equals ("taat")) {
+        model.termAtATime = true;
+      } else if (traversal.equals ("block")) {
+        model.blockAtATime = true;
+      } else if (! traversal.equals ("daat")) {
+        throw new IllegalArgumentException
+          ("Unknown postings:traversal " + parameters.get ("postings:traversal"));
+      }
+    }
+
+    if (parameters.containsKey ("postings:conjunctionOrder")) {
+      String order = parameters.get ("postings:conjunctionOrder").toLowerCase();
+
+      if (order.equals ("df")) {
+        model.orderedConjunctions = true;
+      } else if (! order.equals ("query")) {
+        throw new IllegalArgumentException
+          ("Unknown postings:conjunctionOrder " + parameters.get ("postings:conjunctionOrder"));
+      }
+    }
+
+    if (parameters.containsKey ("postings:scoring")) {
+      String scoring = parameters.get ("postings:scoring").toLowerCase();
+
+      if (scoring.equals ("compiled")) {
+        model.compiledScoring = true;
+      } else if (! scoring.equals ("interpreted")) {
+        throw new IllegalArgumentException
+          ("Unknown postings:scoring " + parameters.get ("postings:scoring"));
+      }
+    }
+
+    if (parameters.containsKey ("postings:impactIndex")) {
+      ImpactIndex index = ImpactIndex.open (parameters.get ("postings:impactIndex"));
+
+      //  An impact index of another index, or of other BM25 parameters,
+      //  would give wrong documents or wrong scores.
+
+      if ((index.getMaxDoc () != Idx.INDEXREADER.maxDoc ()) ||
+          (index.getIndexChecksum () != Idx.getIndexChecksum ()) ||
+          ((model instanceof RetrievalModelBM25) &&
+           ! index.matches ((RetrievalModelBM25) model))) {
+        throw new IllegalArgumentException
+          ("The " + index + " doesn't match the index or the retrieval model.");
+      }
+
+      model.impactIndex = index;
+    }
+
+    if (parameters.containsKey ("postings:impactBudget")) {
+      model.impactBudget = Long.parseLong (parameters.get ("postings:impactBudget"));
+
+      if (model.impactBudget < 1) {
+        throw new IllegalArgumentException
+          ("postings:impactBudget must be at least 1, not " +
+           parameters.get ("postings:impactBudget"));
+      }
+    }
+
+    if (parameters.containsKey ("postings:advanceStatistics")) {
+      model.advanceStatistics =
+        Boolean.parseBoolean (parameters.get ("postings:advanceStatistics"));
+    }
+
+    if (model.advanceStatistics && (model.impactIndex != null)) {
+      System.out.println (model.impactIndex);
+    }
+  }
+
   private static RetrievalModel initializePrfRetrievalModel (Map<String, String> parameters)
     throws IOException {
 
@@ -1163,21 +1336,63 @@ public class QryEval {
     
     if (q != null) {
 
-      ScoreList results = new ScoreList ();
+      //  Only the top k documents are kept while the query is evaluated.
+
+      TopKCollector collector =
+        new TopKCollector (Integer.parseInt(trecEvalOutputLength));
       
       if (q.args.size () > 0) {		// Ignore empty queries
 
-        q.initialize (model);
+        try {
+          if (model.segmentLocal && isSegmentLocal (q, model)) {
+
+            //  Each segment evaluates its own query tree, with
+            //  segment-local docids, into its own collector, so segments
+            //  share no iteration state.  The segments' top documents
+            //  are merged with index-wide docids, which are used to read
+            //  stored fields.  Some evaluators share buffers (e.g.,
+            //  Accumulators), so segments are evaluated in turn.
+
+            List<LeafReaderContext> leaves = Idx.INDEXREADER.leaves ();
 
-        while (q.docIteratorHasMatch (model)) {
-          int docid = q.docIteratorGetMatch ();
-          // System.out.println("Current doc, Internal: " + docid + ", External: "+ Idx.getExternalDocid(docid));
-          double score = ((QrySop) q).getScore (model);
-          results.add (docid, score);
-          q.docIteratorAdvancePast (docid);
+            for (int s = 0; s < leaves.size (); s++) {
+              SegmentContext segment = new SegmentContext (leaves.get (s));
+              Qry segmentQ = (s == 0) ? q : QryParser.copyQuery (qString);
+              TopKCollector segmentCollector =
+                new TopKCollector (collector.getK ());
+
+              setSegment (segmentQ, segment);
+              evaluateQuery (segmentQ, model, segmentCollector);
+              collector.addAll (segmentCollector, segment.getDocBase ());
+            }
+
+            setSegment (q, null);
+          } else {
+            evaluateQuery (q, model, collector);
+          }
+        } finally {
+
+          //  Off-heap inverted lists are released when the query
+          //  finishes, even if evaluation failed.
+
+          if (model.postingsArena != null) {
+            long inUse = model.postingsArena.getBytesAllocated ();
+            long reserved = model.postingsArena.getBytesReserved ();
+
+            model.postingsArena.reset ();
+
+            if (model.advanceStatistics) {
+              System.out.println ("    off-heap postings:  " +
+                                  inUse + " bytes in use, " +
+                                  reserved + " bytes reserved, " +
+                                  model.postingsArena.getBytesReserved () +
+                                  " bytes retained");
+            }
+          }
         }
       }
       
+      ScoreList results = collector.getScoreList ();
       results.sort(); 
       results.truncate(Integer.parseInt(trecEvalOutputLength));
       return results;
@@ -1185,6 +1400,151 @@ public class QryEval {
       return null;
   }
 
+  /**
+   *  Initialize a query and offer each document that it matches, with
+   *  its score, to a top k collector.  If the retrieval model prunes,
+   *  documents that can't be in the top k may not be scored.
+   *  @param q The query.
+   *  @param model The retrieval model determines how matching and scoring is done.
+   *  @param results The collector.
+   *  @throws IOException Error accessing the index
+   */
+  static void evaluateQuery(Qry q, RetrievalModel model, TopKCollector results)
+    throws IOException {
+
+    if ((model.impactIndex != null) && QryEvalScoreAtATime.supports (q, model)) {
+      QryEvalScoreAtATime.evaluate (q, model, results);
+    } else if (model.termAtATime && QryEvalTermAtATime.supports (q, model)) {
+      QryEvalTermAtATime.evaluate (q, model, results);
+    } else if (model.blockAtATime && QryEvalBlockAtATime.supports (q, model)) {
+      QryEvalBlockAtATime.evaluate (q, model, results);
+    } else if (model.maxScorePruning && QryEvalMaxScore.supports (q, model)) {
+      QryEvalMaxScore.evaluate (q, model, results);
+    } else if (model.blockMaxWandPruning &&
+               QryEvalBlockMaxWand.supports (q, model)) {
+      QryEvalBlockMaxWand.evaluate (q, model, results);
+    } else {
+      evaluateExhaustive (q, model, results);
+    }
+
+    if (model.advanceStatistics) {
+      printAdvanceStatistics (q);
+    }
+  }
+
+  /**
+   *  Initialize a query and offer each document that it matches, with
+   *  its score, to a top k collector.
+   *  @param q The query.
+   *  @param model The retrieval model determines how matching and scoring is done.
+   *  @param results The collector.
+   *  @throws IOException Error accessing the index
+   */
+  static void evaluateExhaustive(Qry q, RetrievalModel model, TopKCollector results)
+    throws IOException {
+
+    q.initialize (model);
+
+    //  The query tree scores itself, unless the parameter file asks
+    //  for the query to be compiled for the retrieval model.
+
+    QryScorer scorer = model.compiledScoring ?
+      QryScorer.compile ((QrySop) q, model) :
+      new QryScorer.Interpreted ((QrySop) q, model, new QryScorer[0]);
+
+    while (q.docIteratorHasMatch (model)) {
+      int docid = q.docIteratorGetMatch ();
+      // System.out.println("Current doc, Internal: " + docid + ", External: "+ Idx.getExternalDocid(docid));
+      double score = scorer.getScore ();
+      results.add (docid, score);
+      q.docIteratorAdvancePast (docid);
+    }
+  }
+
+  /**
+   *  Indicates whether a query can be evaluated one segment at a time.
+   *  Term operators use index-wide df and ctf in any segment, but other
+   *  inverted list operators (e.g., #NEAR/n) only know their statistics
+   *  for the segment, so they can't be used by retrieval models that
+   *  need df or ctf.  Queries that are evaluated score-at-a-time read
+   *  the impact index, not the segments' postings, and their budget is
+   *  for the whole index, so they are evaluated once over the index.
+   *  @param q A query tree.
+   *  @param model The retrieval model that will evaluate the query.
+   *  @return True if segment-local evaluation gives the same results.
+   */
+  static boolean isSegmentLocal(Qry q, RetrievalModel model) {
+
+    if ((model.impactIndex != null) && QryEvalScoreAtATime.supports (q, model)) {
+      return false;
+    }
+
+    return isSegmentLocalTree (q, model);
+  }
+
+  /**
+   *  Indicates whether each operator of a query tree can be evaluated
+   *  one segment at a time.
+   *  @param q A query tree.
+   *  @param model The retrieval model that will evaluate the query.
+   *  @return True if segment-local evaluation gives the same results.
+   */
+  private static boolean isSegmentLocalTree(Qry q, RetrievalModel model) {
+
+    if ((q instanceof QryIop) && ! (q instanceof QryIopTerm) &&
+        ((model instanceof RetrievalModelIndri) ||
+         (model instanceof RetrievalModelBM25))) {
+      return false;
+    }
+
+    for (int i = 0; i < q.args.size (); i++) {
+      if (! isSegmentLocalTree (q.args.get (i), model)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Restrict the term and SCORE operators of a query tree to one
+   *  segment of the index, with segment-local docids, or remove the
+   *  restriction.
+   *  @param q A query tree.
+   *  @param segment A segment of the current index, or null.
+   */
+  static void setSegment(Qry q, SegmentContext segment) {
+
+    if (q instanceof QryIopTerm) {
+      ((QryIopTerm) q).setSegment (segment);
+    } else if (q instanceof QrySopScore) {
+      ((QrySopScore) q).setSegment (segment);
+    }
+
+    for (int i = 0; i < q.args.size (); i++) {
+      setSegment (q.args.get (i), segment);
+    }
+  }
+
+  /**
+   *  Print, for each QryIop operator in a query tree, the number of
+   *  postings that its docIterator examined and skipped.
+   *  @param q A query tree that has been evaluated.
+   */
+  static void printAdvanceStatistics(Qry q) {
+
+    if (q instanceof QryIop) {
+      QryIop q_iop = (QryIop) q;
+      System.out.println ("    postings " + q_iop +
+                          ":  touched " + q_iop.getPostingsTouched () +
+                          ", skipped " + q_iop.getPostingsSkipped ());
+    }
+
+    for (int i = 0; i < q.args.size (); i++) {
+      printAdvanceStatistics (q.args.get (i));
+    }
+  }
+
   static String getLearnedQuery(ExpansionTermList topTerms) {
     StringBuilder query = new StringBuilder();
     query.append("#WAND ("); 
@@ -1452,7 +1812,7 @@ public class QryEval {
         
         for (int i = 0; i < result.size(); i++) {
           int rank = i + 1;
-          String toPrint = queryName + " Q0 " + Idx.getExternalDocid(result.getDocid(i)) + " " 
+          String toPrint = queryName + " Q0 " + result.getExternalDocid(i) + " " 
                               + Integer.toString(rank) + " " + result.getDocidScore(i) + " ?\n";
           // System.out.println(toPrint);
           myWriter.write(toPrint);
@@ -0,0 +1,331 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Block-at-a-time evaluation of BM25 #SUM and #WSUM queries, and Indri
+ *  #AND and #WAND queries, whose arguments are SCORE operators.  The
+ *  query's docIterator finds documents as usual, but scoring is
+ *  deferred:  the matching documents and each argument's tf in them
+ *  are gathered into primitive arrays, a block at a time, and each
+ *  argument scores the whole block in loops that the JIT can
+ *  vectorize (see QrySopScore.getScoresBM25 and getScoresIndri).  The
+ *  length normalization of the documents is computed once per field
+ *  for each block, and BM25 arguments that match no document in a
+ *  block are skipped.
+ *  <p>
+ *  Each document's score is combined from its arguments' scores in
+ *  argument order, with the same arithmetic as exhaustive evaluation,
+ *  so scores are identical.
+ *  </p>
+ */
+public class QryEvalBlockAtATime {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The number of documents that are scored together.
+   */
+  static final int BLOCK_SIZE = 256;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Indicates whether a query can be evaluated block-at-a-time:  it is
+   *  a BM25 #SUM or #WSUM, or an Indri #AND or #WAND, with a weight for
+   *  each argument, and its arguments are SCORE operators.
+   *  @param q A query tree.
+   *  @param r The retrieval model that will evaluate the query.
+   *  @return True if the query can be evaluated block-at-a-time.
+   */
+  public static boolean supports (Qry q, RetrievalModel r) {
+
+    if (q.args.size () == 0)
+      return false;
+
+    if ((q instanceof QrySopWeighted) &&
+        (((QrySopWeighted) q).weights.size () != q.args.size ()))
+      return false;
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore))
+        return false;
+    }
+
+    if (r instanceof RetrievalModelBM25) {
+      return ((q instanceof QrySopSum) || (q instanceof QrySopWSum));
+    } else if (r instanceof RetrievalModelIndri) {
+      return ((q instanceof QrySopAnd) || (q instanceof QrySopWAnd));
+    }
+
+    return false;
+  }
+
+  /**
+   *  Evaluate a query block-at-a-time, and offer each document that it
+   *  matches, with its score, to a collector.
+   *  @param q A query for which supports is true.
+   *  @param r The retrieval model.
+   *  @param results The collector of the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r,
+                               TopKCollector results) throws IOException {
+
+    int n = q.args.size ();
+
+    q.initialize (r);
+
+    QrySopScore[] args = new QrySopScore[n];
+    QryIop[] iops = new QryIop[n];
+
+    for (int i = 0; i < n; i++) {
+      args[i] = (QrySopScore) q.args.get (i);
+      iops[i] = (QryIop) args[i].args.get (0);
+    }
+
+    //  The weight of each argument:  BM25's query term weights, or the
+    //  Indri exponents (or log weights), normalized as #AND and #WAND
+    //  normalize them.
+
+    double[] weights;
+
+    if (r instanceof RetrievalModelBM25) {
+      weights = QryEvalMaxScore.getMultipliers (q, (RetrievalModelBM25) r);
+    } else if (q instanceof QrySopWAnd) {
+      QrySopWAnd wand = (QrySopWAnd) q;
+      weights = new double[n];
+
+      for (int i = 0; i < n; i++) {
+        weights[i] = wand.weights.get (i) / wand.total_weight;
+      }
+    } else {
+      weights = new double[n];
+      Arrays.fill (weights, 1.0 / (double) n);
+    }
+
+    //  Arguments in the same field share the documents' length
+    //  normalization.  fields[i] is the index of argument i's field.
+
+    ArrayList<String> fieldNames = new ArrayList<String> ();
+    int[] fields = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      String field = iops[i].getField ();
+
+      if (! fieldNames.contains (field)) {
+        fieldNames.add (field);
+      }
+
+      fields[i] = fieldNames.indexOf (field);
+    }
+
+    Block block = new Block (n, fields);
+
+    while (q.docIteratorHasMatch (r)) {
+      int docid = q.docIteratorGetMatch ();
+      int j = block.count++;
+
+      block.docids[j] = docid;
+
+      for (int i = 0; i < n; i++) {
+        if (args[i].docIteratorHasMatch (r) &&
+            (args[i].docIteratorGetMatch () == docid)) {
+          block.tfs[i][j] = iops[i].getTfOfDoc ();
+          block.matches[i] ++;
+        } else {
+          block.tfs[i][j] = 0;
+        }
+      }
+
+      q.docIteratorAdvancePast (docid);
+
+      if (block.count == BLOCK_SIZE) {
+        scoreBlock (q, r, args, weights, block, results);
+      }
+    }
+
+    if (block.count > 0) {
+      scoreBlock (q, r, args, weights, block, results);
+    }
+  }
+
+  /**
+   *  Score a block of documents, offer them to a collector, and empty
+   *  the block.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param args The query's arguments.
+   *  @param weights The weight of each argument.
+   *  @param block The block.
+   *  @param results The collector of the top k documents.
+   */
+  private static void scoreBlock (Qry q, RetrievalModel r, QrySopScore[] args,
+                                  double[] weights, Block block,
+                                  TopKCollector results) {
+
+    int count = block.count;
+    double[] scores = block.scores;
+    double[] termScores = block.termScores;
+    boolean bm25 = (r instanceof RetrievalModelBM25);
+
+    //  The length normalization of each field, computed by the first
+    //  argument in the field.
+
+    boolean[] done = new boolean[block.norms.length];
+    boolean[] positive = new boolean[block.norms.length];
+
+    for (int i = 0; i < args.length; i++) {
+      int f = block.fields[i];
+
+      if (! done[f] && (! bm25 || (block.matches[i] > 0))) {
+        double[] norms = block.norms[f];
+        double minNorm = Double.POSITIVE_INFINITY;
+
+        if (bm25) {
+          args[i].getNormsBM25 (block.docids, count, norms);
+        } else {
+          args[i].getNormsIndri (block.docids, count, norms);
+        }
+
+        for (int j = 0; j < count; j++) {
+          minNorm = Math.min (minNorm, norms[j]);
+        }
+
+        positive[f] = (minNorm > 0.0);
+        done[f] = true;
+      }
+    }
+
+    if (bm25) {
+
+      //  An argument adds its weighted score to the documents it matches.
+
+      Arrays.fill (scores, 0, count, 0.0);
+
+      for (int i = 0; i < args.length; i++) {
+        int[] tfs = block.tfs[i];
+        double weight = weights[i];
+
+        if (block.matches[i] == 0)
+          continue;
+
+        args[i].getScoresBM25 (tfs, count, block.norms[block.fields[i]], termScores);
+
+        //  If the normalization is positive, a document that the
+        //  argument doesn't match scores 0, and adding 0 doesn't change
+        //  the sum, so the loop doesn't need to test tf.
+
+        if (positive[block.fields[i]] && Double.isFinite (weight)) {
+          for (int j = 0; j < count; j++) {
+            scores[j] += termScores[j] * weight;
+          }
+        } else {
+          for (int j = 0; j < count; j++) {
+            scores[j] += (tfs[j] != 0) ? (termScores[j] * weight) : 0.0;
+          }
+        }
+      }
+    } else if (((RetrievalModelIndri) r).logScores) {
+
+      //  The weighted sum of log scores, as QrySop.getWeightedLogScore.
+
+      Arrays.fill (scores, 0, count, 0.0);
+
+      for (int i = 0; i < args.length; i++) {
+        double weight = weights[i];
+
+        args[i].getScoresIndri (block.tfs[i], count, block.norms[block.fields[i]], termScores);
+
+        for (int j = 0; j < count; j++) {
+          scores[j] += weight * Math.log (termScores[j]);
+        }
+      }
+
+      for (int j = 0; j < count; j++) {
+        scores[j] = Math.exp (scores[j]);
+      }
+    } else if (q instanceof QrySopWAnd) {
+
+      //  The product of the scores raised to their weights.
+
+      Arrays.fill (scores, 0, count, 1.0);
+
+      for (int i = 0; i < args.length; i++) {
+        double weight = weights[i];
+
+        args[i].getScoresIndri (block.tfs[i], count, block.norms[block.fields[i]], termScores);
+
+        for (int j = 0; j < count; j++) {
+          scores[j] *= Math.pow (termScores[j], weight);
+        }
+      }
+    } else {
+
+      //  The n'th root of the product of the scores.
+
+      Arrays.fill (scores, 0, count, 1.0);
+
+      for (int i = 0; i < args.length; i++) {
+        args[i].getScoresIndri (block.tfs[i], count, block.norms[block.fields[i]], termScores);
+
+        for (int j = 0; j < count; j++) {
+          scores[j] *= termScores[j];
+        }
+      }
+
+      double exponent = 1.0 / (double) args.length;
+
+      for (int j = 0; j < count; j++) {
+        scores[j] = Math.pow (scores[j], exponent);
+      }
+    }
+
+    for (int j = 0; j < count; j++) {
+      results.add (block.docids[j], scores[j]);
+    }
+
+    block.count = 0;
+    Arrays.fill (block.matches, 0);
+  }
+
+  /**
+   *  A block of documents that are scored together, and the buffers
+   *  that they are scored with.
+   */
+  private static class Block {
+
+    int count = 0;
+    int[] docids = new int[BLOCK_SIZE];
+
+    //  The tf of each argument in each document, and the number of
+    //  documents that each argument matches.
+
+    int[][] tfs;
+    int[] matches;
+
+    //  The index of each argument's field, and the length normalization
+    //  of each field.
+
+    int[] fields;
+    double[][] norms;
+
+    double[] termScores = new double[BLOCK_SIZE];
+    double[] scores = new double[BLOCK_SIZE];
+
+    Block (int numArgs, int[] fields) {
+      int numFields = 0;
+
+      for (int f : fields) {
+        numFields = Math.max (numFields, f + 1);
+      }
+
+      this.tfs = new int[numArgs][BLOCK_SIZE];
+      this.matches = new int[numArgs];
+      this.fields = fields;
+      this.norms = new double[numFields][BLOCK_SIZE];
+    }
+  }
+}
@@ -0,0 +1,253 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.LeafReaderContext;
+
+/**
+ *  Block-Max WAND evaluation of BM25 #SUM and #WSUM queries of terms.
+ *  Lucene stores impacts with each block of postings:  the (tf, norm)
+ *  pairs that may give a document in the block its highest score.
+ *  The index is evaluated one segment at a time.  The terms are kept
+ *  in order of their current documents, and the pivot is the first
+ *  term at which the terms' score bounds add up to the k'th best score
+ *  so far.  If the block-level bounds of the terms up to the pivot
+ *  can't reach the k'th best score either, every term up to the pivot
+ *  skips to the end of the shortest of those blocks without decoding
+ *  them; otherwise the pivot document is scored.
+ *  <p>
+ *  Scores are computed exactly as in exhaustive evaluation, and
+ *  documents are skipped only if their bound is below the threshold by
+ *  a safety margin, so the top k documents are exactly the ones that
+ *  exhaustive evaluation finds.  Queries that have other arguments,
+ *  e.g., proximity operators, are evaluated exhaustively.
+ *  </p>
+ */
+public class QryEvalBlockMaxWand {
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Indicates whether a query can be evaluated with Block-Max WAND:
+   *  it can be evaluated with MaxScore, and the argument of each SCORE
+   *  operator is a term.
+   *  @param q A query tree.
+   *  @param r The retrieval model that will evaluate the query.
+   *  @return True if the query can be evaluated with Block-Max WAND.
+   */
+  public static boolean supports (Qry q, RetrievalModel r) {
+
+    if (! QryEvalMaxScore.supports (q, r))
+      return false;
+
+    for (Qry q_i : q.args) {
+      if ((q_i.args.size () != 1) ||
+          ! (q_i.args.get (0) instanceof QryIopTerm))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate a query with Block-Max WAND, and offer the documents that
+   *  may be in the top k, with their scores, to a collector.  The
+   *  collector's threshold decides which blocks are skipped.  Each
+   *  segment is evaluated with segment-local docids, and documents are
+   *  offered with internal docids.  If the query is restricted to a
+   *  segment, just that segment is evaluated, and documents are offered
+   *  with its segment-local docids.
+   *  @param q A query for which supports is true.
+   *  @param r The retrieval model.
+   *  @param results The collector of the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r,
+                               TopKCollector results) throws IOException {
+
+    int n = q.args.size ();
+    QrySopScore[] args = new QrySopScore[n];
+    QryIopTerm[] terms = new QryIopTerm[n];
+
+    for (int i = 0; i < n; i++) {
+      args[i] = (QrySopScore) q.args.get (i);
+      terms[i] = (QryIopTerm) args[i].args.get (0);
+    }
+
+    SegmentContext restriction = terms[0].getSegment ();
+    List<SegmentContext> segments = new ArrayList<SegmentContext> ();
+
+    if (restriction != null) {
+      segments.add (restriction);
+    } else {
+      for (LeafReaderContext leaf : Idx.INDEXREADER.leaves ()) {
+        segments.add (new SegmentContext (leaf));
+      }
+    }
+
+    try {
+      for (SegmentContext segment : segments) {
+        for (int i = 0; i < n; i++) {
+          terms[i].setSegment (segment);
+          terms[i].setImpactsRequired (true);
+          args[i].setSegment (segment);
+        }
+
+        q.initialize (r);
+        evaluateSegment (q, r, args, terms,
+                         (restriction == null) ? segment.getDocBase () : 0,
+                         results);
+      }
+    } finally {
+      for (int i = 0; i < n; i++) {
+        terms[i].setSegment (restriction);
+        terms[i].setImpactsRequired (false);
+        args[i].setSegment (restriction);
+      }
+    }
+  }
+
+  /**
+   *  Evaluate an initialized query on the segment that its terms are
+   *  restricted to.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param args The query's SCORE operators.
+   *  @param terms The term of each SCORE operator.
+   *  @param docBase Added to the segment-local docid of each document
+   *  that is offered to the collector.
+   *  @param results The collector of the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void evaluateSegment (Qry q, RetrievalModel r,
+                                       QrySopScore[] args, QryIopTerm[] terms,
+                                       int docBase, TopKCollector results)
+    throws IOException {
+
+    int n = args.length;
+    double[] multipliers =
+      QryEvalMaxScore.getMultipliers (q, (RetrievalModelBM25) r);
+    double[] bounds = new double[n];
+    int[] order = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      bounds[i] = args[i].getMaxScore (r) * multipliers[i];
+      order[i] = i;
+    }
+
+    while (true) {
+
+      double threshold = results.getThreshold ();
+
+      //  Order the terms by their current documents.  Queries are short,
+      //  and the order changes little between passes.
+
+      for (int j = 1; j < n; j++) {
+        int i = order[j];
+        int docid = docid (terms[i]);
+        int m = j - 1;
+
+        while ((m >= 0) && (docid (terms[order[m]]) > docid)) {
+          order[m + 1] = order[m];
+          m --;
+        }
+
+        order[m + 1] = i;
+      }
+
+      //  Find the pivot.  A document before the pivot document can
+      //  only match terms whose bounds don't reach the threshold.
+
+      double boundSum = 0.0;
+      int pivot = -1;
+
+      for (int j = 0; j < n; j++) {
+        if (docid (terms[order[j]]) == PostingsIterator.NO_MORE_DOCS)
+          break;
+
+        boundSum += bounds[order[j]];
+
+        if (boundSum * QryEvalMaxScore.MARGIN >= threshold) {
+          pivot = j;
+          break;
+        }
+      }
+
+      if (pivot < 0)
+        break;
+
+      int pivotDocid = docid (terms[order[pivot]]);
+
+      while ((pivot + 1 < n) && (docid (terms[order[pivot + 1]]) == pivotDocid)) {
+        pivot ++;
+      }
+
+      //  Bound the score of the documents from the pivot document to the
+      //  end of the shortest block of the terms up to the pivot.  Terms
+      //  after the pivot don't match before their current documents.
+
+      double blockSum = 0.0;
+      int nextDocid = (pivot + 1 < n) ?
+        docid (terms[order[pivot + 1]]) : PostingsIterator.NO_MORE_DOCS;
+
+      for (int j = 0; j <= pivot; j++) {
+        int i = order[j];
+        int blockEnd = terms[i].advanceShallow (pivotDocid);
+
+        blockSum += args[i].getBlockMaxScore (r) * multipliers[i];
+
+        if (blockEnd < nextDocid - 1) {
+          nextDocid = blockEnd + 1;
+        }
+      }
+
+      if (blockSum * QryEvalMaxScore.MARGIN < threshold) {
+        for (int j = 0; j <= pivot; j++) {
+          terms[order[j]].docIteratorAdvanceTo (nextDocid);
+        }
+        continue;
+      }
+
+      if (docid (terms[order[0]]) != pivotDocid) {
+
+        //  Move the terms up to the pivot document.
+
+        for (int j = 0; j <= pivot; j++) {
+          if (docid (terms[order[j]]) < pivotDocid) {
+            terms[order[j]].docIteratorAdvanceTo (pivotDocid);
+          }
+        }
+        continue;
+      }
+
+      //  Every term up to the pivot is at the pivot document.  Sum in
+      //  argument order, as exhaustive evaluation does.
+
+      double score = 0.0;
+
+      for (int i = 0; i < n; i++) {
+        if (docid (terms[i]) == pivotDocid) {
+          score += args[i].getScore (r) * multipliers[i];
+        }
+      }
+
+      results.add (docBase + pivotDocid, score);
+
+      for (int j = 0; j <= pivot; j++) {
+        terms[order[j]].docIteratorAdvancePast (pivotDocid);
+      }
+    }
+  }
+
+  /**
+   *  Get the current document of a term.
+   *  @param term The term.
+   *  @return A segment-local document id, or PostingsIterator.NO_MORE_DOCS.
+   */
+  private static int docid (QryIopTerm term) {
+    return term.docIteratorHasMatch (null) ?
+      term.docIteratorGetMatch () : PostingsIterator.NO_MORE_DOCS;
+  }
+}
@@ -0,0 +1,239 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  MaxScore evaluation of BM25 #SUM and #WSUM queries.  Each argument
+ *  has an upper bound on the score that it can contribute to a
+ *  document.  Arguments are ordered by their bounds.  While the top k
+ *  documents are collected, the arguments whose bounds add up to less
+ *  than the k'th best score are non-essential:  a document that
+ *  matches only those arguments can't be in the top k, so candidates
+ *  come from the essential arguments only, and a candidate is dropped
+ *  as soon as its partial score plus the bounds of the arguments not
+ *  yet examined falls below the k'th best score.
+ *  <p>
+ *  Documents that are scored are scored with the same arithmetic as
+ *  exhaustive evaluation, and a document is dropped only if its bound
+ *  is below the threshold by a safety margin, so the top k documents
+ *  are exactly the ones that exhaustive evaluation finds.
+ *  </p>
+ */
+public class QryEvalMaxScore {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  Bounds are inflated by this relative margin before they are
+   *  compared to the threshold, so that floating point rounding can't
+   *  drop a document that ties the k'th best score.
+   */
+  static final double MARGIN = 1.0 + 1e-9;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Indicates whether a query can be evaluated with MaxScore.  The
+   *  query must be a #SUM or #WSUM with positive weights whose
+   *  arguments are SCORE operators, and the model must be BM25 with
+   *  parameters for which the score bounds hold.
+   *  @param q A query tree.
+   *  @param r The retrieval model that will evaluate the query.
+   *  @return True if the query can be evaluated with MaxScore.
+   */
+  public static boolean supports (Qry q, RetrievalModel r) {
+
+    if (! (r instanceof RetrievalModelBM25))
+      return false;
+
+    RetrievalModelBM25 rm = (RetrievalModelBM25) r;
+
+    if ((rm.k_1 < 0.0) || (rm.b < 0.0) || (rm.b > 1.0) || (rm.k_3 < 0.0))
+      return false;
+
+    if (q instanceof QrySopWSum) {
+      ArrayList<Double> weights = ((QrySopWSum) q).weights;
+
+      if (weights.size () != q.args.size ())
+        return false;
+
+      for (double w : weights) {
+        if (! (w > 0.0))
+          return false;
+      }
+    } else if (! (q instanceof QrySopSum)) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore))
+        return false;
+    }
+
+    return (q.args.size () > 0);
+  }
+
+  /**
+   *  Evaluate a query with MaxScore, and offer the documents that may
+   *  be in the top k, with their scores, to a collector.  The collector's
+   *  threshold decides which documents are skipped.
+   *  @param q A query for which supports is true.
+   *  @param r The retrieval model.
+   *  @param results The collector of the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r,
+                               TopKCollector results) throws IOException {
+
+    RetrievalModelBM25 rm = (RetrievalModelBM25) r;
+    int n = q.args.size ();
+
+    q.initialize (r);
+
+    QrySopScore[] args = new QrySopScore[n];
+    double[] multipliers = getMultipliers (q, rm);
+    double[] bounds = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      args[i] = (QrySopScore) q.args.get (i);
+      bounds[i] = args[i].getMaxScore (r) * multipliers[i];
+    }
+
+    //  Order the arguments by increasing bound; arguments with equal
+    //  bounds stay in argument order.  Each bound's rank and the
+    //  argument's index are packed into a long, so the sort is of
+    //  primitives.  cumBounds[j] is the sum of the bounds of
+    //  order[0..j].
+
+    int[] ranks = new int[n];
+    long[] keys = new long[n];
+    int numDistinct = Utils.rankDescending (bounds, n, ranks);
+
+    for (int i = 0; i < n; i++) {
+      keys[i] = ((long) (numDistinct - 1 - ranks[i]) << 32) | i;
+    }
+
+    Arrays.sort (keys);
+
+    int[] order = new int[n];
+    double[] cumBounds = new double[n];
+    double cum = 0.0;
+
+    for (int j = 0; j < n; j++) {
+      order[j] = (int) keys[j];
+      cum += bounds[order[j]];
+      cumBounds[j] = cum;
+    }
+
+    double[] contributions = new double[n];
+    boolean[] matched = new boolean[n];
+    int firstEssential = 0;
+
+    while (true) {
+
+      double threshold = results.getThreshold ();
+
+      //  The non-essential arguments can't reach the threshold together.
+
+      while ((firstEssential < n) &&
+             (cumBounds[firstEssential] * MARGIN < threshold)) {
+        firstEssential ++;
+      }
+
+      if (firstEssential == n)
+        break;
+
+      //  The next candidate is the smallest docid of the essential arguments.
+
+      int docid = Qry.INVALID_DOCID;
+
+      for (int j = firstEssential; j < n; j++) {
+        QrySopScore q_i = args[order[j]];
+
+        if (q_i.docIteratorHasMatch (r)) {
+          int q_iDocid = q_i.docIteratorGetMatch ();
+
+          if ((docid == Qry.INVALID_DOCID) || (q_iDocid < docid)) {
+            docid = q_iDocid;
+          }
+        }
+      }
+
+      if (docid == Qry.INVALID_DOCID)
+        break;
+
+      //  Score the essential arguments, and then the non-essential
+      //  arguments in decreasing order of bound, while the candidate
+      //  can still reach the threshold.
+
+      double partial = 0.0;
+      boolean dropped = false;
+
+      for (int j = n - 1; j >= 0; j--) {
+        int i = order[j];
+        QrySopScore q_i = args[i];
+
+        if (j < firstEssential) {
+          if ((partial + cumBounds[j]) * MARGIN < threshold) {
+            dropped = true;
+            break;
+          }
+          q_i.docIteratorAdvanceTo (docid);
+        }
+
+        matched[i] = (q_i.docIteratorHasMatch (r) &&
+                      (q_i.docIteratorGetMatch () == docid));
+
+        if (matched[i]) {
+          contributions[i] = q_i.getScore (r) * multipliers[i];
+          partial += contributions[i];
+        }
+      }
+
+      if (! dropped) {
+
+        //  Sum in argument order, as exhaustive evaluation does.
+
+        double score = 0.0;
+
+        for (int i = 0; i < n; i++) {
+          if (matched[i]) {
+            score += contributions[i];
+          }
+        }
+
+        results.add (docid, score);
+      }
+
+      for (int j = firstEssential; j < n; j++) {
+        args[order[j]].docIteratorAdvancePast (docid);
+      }
+    }
+  }
+
+  /**
+   *  Get the query-term weight that QrySopSum or QrySopWSum multiplies
+   *  each argument's score by, computed the same way, so that scores
+   *  are identical to exhaustive evaluation.
+   *  @param q A query for which supports is true.
+   *  @param r The retrieval model.
+   *  @return The weight of each argument.
+   */
+  static double[] getMultipliers (Qry q, RetrievalModelBM25 r) {
+
+    double[] multipliers = new double[q.args.size ()];
+
+    for (int i = 0; i < multipliers.length; i++) {
+      if (q instanceof QrySopWSum) {
+        double w = ((QrySopWSum) q).weights.get (i);
+        multipliers[i] = ((r.k_3 + 1.0) * w) / (r.k_3 + w);
+      } else {
+        multipliers[i] = ((r.k_3 + 1.0) * 1.0) / (r.k_3 + 1.0);
+      }
+    }
+
+    return multipliers;
+  }
+}
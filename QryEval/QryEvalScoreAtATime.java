@@ -0,0 +1,154 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+
+/**
+ *  Score-at-a-time evaluation of BM25 #SUM and #WSUM queries of terms,
+ *  over an impact-ordered sidecar index (see ImpactIndex).  The impact
+ *  segments of all of the query's terms are processed in decreasing
+ *  order of their weighted impacts, and each document's score is
+ *  accumulated in a dense array (see Accumulators).  The highest-
+ *  scoring postings are processed first, so evaluation can stop after
+ *  a budget of postings and still give a good approximate ranking.
+ *  <p>
+ *  Scores are quantized, so rankings are approximate even if the budget
+ *  is not reached.  The Lucene index's postings are not read.
+ *  </p>
+ */
+public class QryEvalScoreAtATime {
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Indicates whether a query can be evaluated score-at-a-time:  it
+   *  can be evaluated with MaxScore, and the argument of each SCORE
+   *  operator is a term in the impact index's field.  The impact index
+   *  is checked against the current index and the model's BM25
+   *  parameters when it is opened.
+   *  @param q A query tree.
+   *  @param r The retrieval model that will evaluate the query.
+   *  @return True if the query can be evaluated score-at-a-time.
+   */
+  public static boolean supports (Qry q, RetrievalModel r) {
+
+    if ((r.impactIndex == null) || ! QryEvalMaxScore.supports (q, r))
+      return false;
+
+    for (Qry q_i : q.args) {
+      if ((q_i.args.size () != 1) ||
+          ! (q_i.args.get (0) instanceof QryIopTerm) ||
+          ! ((QryIopTerm) q_i.args.get (0)).getField ().equals (r.impactIndex.getField ()))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate a query score-at-a-time, and offer the documents that it
+   *  matches, with their approximate scores, to a collector.  At most
+   *  r.impactBudget postings are processed.
+   *  @param q A query for which supports is true.
+   *  @param r The retrieval model.
+   *  @param results The collector of the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r,
+                               TopKCollector results) throws IOException {
+
+    ImpactIndex index = r.impactIndex;
+    int n = q.args.size ();
+    double[] multipliers =
+      QryEvalMaxScore.getMultipliers (q, (RetrievalModelBM25) r);
+
+    //  Gather the segments of every term, with their weighted impacts.
+
+    ArrayList<ImpactIndex.Segment> segments = new ArrayList<ImpactIndex.Segment> ();
+    double[] weights = new double[16];
+    int maxCount = 0;
+
+    for (int i = 0; i < n; i++) {
+      QryIopTerm term = (QryIopTerm) q.args.get (i).args.get (0);
+
+      for (ImpactIndex.Segment segment : index.getSegments (term.getTerm ())) {
+        if (segments.size () == weights.length) {
+          weights = Arrays.copyOf (weights, 2 * weights.length);
+        }
+
+        weights[segments.size ()] = segment.impact * multipliers[i];
+        segments.add (segment);
+        maxCount = Math.max (maxCount, segment.count);
+      }
+    }
+
+    int[] order = orderByWeight (weights, segments.size ());
+
+    int maxDoc = index.getMaxDoc ();
+
+    //  Process the segments in decreasing order of weighted impact
+    //  until the budget runs out.
+
+    long budget = r.impactBudget;
+    int[] docids = new int[maxCount];
+    Accumulators accumulators = Accumulators.get (maxDoc);
+
+    try {
+      for (int j = 0; (j < order.length) && (budget > 0); j++) {
+        ImpactIndex.Segment segment = segments.get (order[j]);
+        double weight = weights[order[j]];
+
+        index.decode (segment, docids);
+
+        int count = (int) Math.min (segment.count, budget);
+        budget -= count;
+
+        for (int p = 0; p < count; p++) {
+          accumulators.add (docids[p], weight);
+        }
+      }
+
+      double scale = index.getScale ();
+
+      for (int j = 0; j < accumulators.numCandidates; j++) {
+        int docid = accumulators.candidates[j];
+        results.add (docid, accumulators.values[docid] * scale);
+      }
+    } finally {
+      accumulators.clear ();
+    }
+  }
+
+  /**
+   *  Order segments by decreasing weight.  Segments of equal weight
+   *  stay in the order that they were gathered.  Each weight's rank
+   *  among the distinct weights and the segment's index are packed
+   *  into a long, so the sort is of primitives.
+   *  @param weights The weight of each segment.
+   *  @param count The number of segments.
+   *  @return The indexes of the segments, in decreasing order of weight.
+   */
+  private static int[] orderByWeight (double[] weights, int count) {
+
+    int[] ranks = new int[count];
+    long[] keys = new long[count];
+
+    Utils.rankDescending (weights, count, ranks);
+
+    for (int j = 0; j < count; j++) {
+      keys[j] = ((long) ranks[j] << 32) | j;
+    }
+
+    Arrays.sort (keys);
+
+    int[] order = new int[count];
+
+    for (int j = 0; j < count; j++) {
+      order[j] = (int) keys[j];
+    }
+
+    return order;
+  }
+}
@@ -0,0 +1,207 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Term-at-a-time evaluation of BM25 #SUM and #WSUM queries of terms.
+ *  Each term's postings are read in turn, and each document's score is
+ *  accumulated in a dense array indexed by internal docid (see
+ *  Accumulators), so a query
+ *  with many arguments doesn't compare every argument's docid on every
+ *  step as document-at-a-time evaluation does.
+ *  <p>
+ *  Accumulators are pruned as terms are processed.  Scores only grow,
+ *  so the k'th best partial score is a lower bound on the final
+ *  threshold.  When the bounds of the terms that remain can't lift a
+ *  new document to it, no new accumulators are created, and an
+ *  accumulator is dropped when its partial score plus those bounds
+ *  can't reach it.  A k'th best partial score that is out of date is
+ *  still a lower bound, so while new accumulators are created it is
+ *  recomputed only after as many postings as there are candidates have
+ *  been read, and afterwards it is found in the pass that drops
+ *  accumulators.  Terms are processed in argument order, so scores
+ *  are summed in the same order as exhaustive evaluation and rankings
+ *  are identical.
+ *  </p>
+ */
+public class QryEvalTermAtATime {
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Indicates whether a query can be evaluated term-at-a-time:  it can
+   *  be evaluated with MaxScore, and the argument of each SCORE
+   *  operator is a term.
+   *  @param q A query tree.
+   *  @param r The retrieval model that will evaluate the query.
+   *  @return True if the query can be evaluated term-at-a-time.
+   */
+  public static boolean supports (Qry q, RetrievalModel r) {
+
+    if (! QryEvalMaxScore.supports (q, r))
+      return false;
+
+    for (Qry q_i : q.args) {
+      if ((q_i.args.size () != 1) ||
+          ! (q_i.args.get (0) instanceof QryIopTerm))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate a query term-at-a-time, and offer the documents that may
+   *  be in the top k, with their scores, to a collector.
+   *  @param q A query for which supports is true.
+   *  @param r The retrieval model.
+   *  @param results The collector of the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r,
+                               TopKCollector results) throws IOException {
+
+    int n = q.args.size ();
+
+    q.initialize (r);
+
+    //  remainingBounds[i] bounds the score that arguments i..n-1 can
+    //  add to a document.
+
+    QrySopScore[] args = new QrySopScore[n];
+    double[] multipliers =
+      QryEvalMaxScore.getMultipliers (q, (RetrievalModelBM25) r);
+    double[] remainingBounds = new double[n + 1];
+
+    for (int i = 0; i < n; i++) {
+      args[i] = (QrySopScore) q.args.get (i);
+    }
+
+    for (int i = n - 1; i >= 0; i--) {
+      remainingBounds[i] =
+        remainingBounds[i + 1] + args[i].getMaxScore (r) * multipliers[i];
+    }
+
+    Accumulators accumulators = Accumulators.get (Idx.INDEXREADER.maxDoc ());
+    double[] values = accumulators.values;
+    int[] candidates = accumulators.candidates;
+    boolean growing = true;
+
+    //  The k'th best partial score, and the number of postings that have
+    //  been read since it was found.
+
+    TopKCollector best = new TopKCollector (results.getK ());
+    double kthPartial = Double.NEGATIVE_INFINITY;
+    long postingsRead = 0;
+
+    try {
+      for (int i = 0; i < n; i++) {
+        QrySopScore q_i = args[i];
+
+        if (growing) {
+
+          //  Every posting of the term updates or creates an accumulator.
+
+          while (q_i.docIteratorHasMatch (r)) {
+            int docid = q_i.docIteratorGetMatch ();
+
+            accumulators.add (docid, q_i.getScore (r) * multipliers[i]);
+            q_i.docIteratorAdvancePast (docid);
+            postingsRead ++;
+          }
+        } else {
+
+          //  Only the candidates, which are in docid order, are updated.
+
+          for (int j = 0; j < accumulators.numCandidates; j++) {
+            int docid = candidates[j];
+
+            q_i.docIteratorAdvanceTo (docid);
+
+            if (! q_i.docIteratorHasMatch (r))
+              break;
+
+            if (q_i.docIteratorGetMatch () == docid) {
+              values[docid] += q_i.getScore (r) * multipliers[i];
+            }
+          }
+        }
+
+        if (i == n - 1)
+          break;
+
+        //  Prune with the k'th best partial score, or the collector's
+        //  threshold if it is higher.
+
+        double remaining = remainingBounds[i + 1];
+
+        if (growing && (postingsRead >= accumulators.numCandidates)) {
+          kthPartial = partialThreshold (accumulators, best);
+          postingsRead = 0;
+        }
+
+        double threshold = Math.max (kthPartial, results.getThreshold ());
+
+        if (growing && (remaining * QryEvalMaxScore.MARGIN < threshold)) {
+          growing = false;
+          Arrays.sort (candidates, 0, accumulators.numCandidates);
+        }
+
+        if (! growing) {
+
+          //  The accumulators that are kept give the k'th best partial
+          //  score for the next term.
+
+          int kept = 0;
+
+          best.clear ();
+
+          for (int j = 0; j < accumulators.numCandidates; j++) {
+            int docid = candidates[j];
+
+            if ((values[docid] + remaining) * QryEvalMaxScore.MARGIN < threshold) {
+              accumulators.isCandidate[docid] = false;
+            } else {
+              candidates[kept++] = docid;
+              best.add (docid, values[docid]);
+            }
+          }
+
+          accumulators.numCandidates = kept;
+          kthPartial = Math.max (kthPartial, best.getThreshold ());
+        }
+      }
+
+      for (int j = 0; j < accumulators.numCandidates; j++) {
+        results.add (candidates[j], values[candidates[j]]);
+      }
+    } finally {
+      accumulators.clear ();
+    }
+  }
+
+  /**
+   *  Get the k'th best partial score of the candidates.
+   *  @param accumulators The candidates' accumulators.
+   *  @param best A collector of the top k documents, which is cleared.
+   *  @return The k'th best partial score, or negative infinity if there
+   *  are fewer than k candidates.
+   */
+  private static double partialThreshold (Accumulators accumulators,
+                                          TopKCollector best) {
+
+    if (accumulators.numCandidates < best.getK ())
+      return Double.NEGATIVE_INFINITY;
+
+    best.clear ();
+
+    for (int j = 0; j < accumulators.numCandidates; j++) {
+      int docid = accumulators.candidates[j];
+      best.add (docid, accumulators.values[docid]);
+    }
+
+    return best.getThreshold ();
+  }
+}
@@ -13,7 +13,13 @@ import java.util.*;
  *  common to all query operators that return inverted lists.
  *  <p>
  *  After a QryIop operator is initialized, it caches a full inverted
- *  list, and information from the inverted list is accessible.  Document
+ *  list, and information from the inverted list is accessible.  The
+ *  exception is a QryIopTerm in streaming mode, which reads its postings
+ *  from the index as its docIterator advances.  The locIterator is
+ *  implemented with getTfOfDoc and docIteratorGetMatchPosition, so it
+ *  works with either kind of docIterator.  Operators whose locations
+ *  are not used by their parent (see setPositionsRequired) may have
+ *  inverted lists without positions.  Document
  *  and location information are accessed via Qry.docIterator and
  *  QryIop.locIterator.  Corpus-level information, for example, 
  *  document frequency (df) and collection term frequency (ctf), are
@@ -63,18 +69,56 @@ public abstract class QryIop extends Qry {
    */
   private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
+  /**
+   *  If true, docIterator advances use exponential (galloping) search
+   *  over the inverted list instead of a linear scan.
+   */
+  private boolean gallopingAdvance = false;
+
+  /**
+   *  If true, newInvList creates compressed inverted lists.
+   */
+  private boolean compressedPostings = false;
+
+  /**
+   *  If not null, newInvList creates off-heap inverted lists in this arena.
+   */
+  private PostingsArena postingsArena = null;
+
+  /**
+   *  If false, the parent operator does not use this operator's
+   *  locations, so the inverted list may omit positions.  The query
+   *  planner (QryParser) sets this; the default is the safe choice.
+   */
+  private boolean positionsRequired = true;
+
+  /**
+   *  The number of postings whose document ids were examined, and the
+   *  number passed over without being examined, by docIterator advances.
+   */
+  private long postingsTouched = 0;
+  private long postingsSkipped = 0;
+
+  /**
+   *  The largest term frequency in the inverted list, or -1 if it
+   *  hasn't been computed yet.
+   */
+  private int maxTf = -1;
+
+  /**
+   *  If the inverted list is compressed, the iterator's own decoded
+   *  block, so operators that share the list don't decode each other's
+   *  blocks.  Otherwise null.
+   */
+  private InvListCompressed.Cursor compressedCursor = null;
+
   /**
    *  Advance the query operator's internal iterator beyond the
    *  specified document.
    *  @param docid The document's internal document id
    */
   public void docIteratorAdvancePast (int docid) {
-
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
-    }
-           
+    this.docIteratorIndex = this.docIteratorFindIndex (docid + 1);
     this.locIteratorIndex = 0;
   }
 
@@ -84,13 +128,110 @@ public abstract class QryIop extends Qry {
    *  @param docid The document's internal document id
    */
   public void docIteratorAdvanceTo (int docid) {
+    this.docIteratorIndex = this.docIteratorFindIndex (docid);
+    this.locIteratorIndex = 0;
+  }
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
+  /**
+   *  Find the index of the first posting at or after the docIterator
+   *  whose document id is at least target.  The inverted list's skip
+   *  table is used first to jump over blocks of postings that are
+   *  all before the target.  Then, in galloping mode, the search
+   *  probes postings 1, 2, 4, 8, ... ahead until it passes the target,
+   *  and then does a binary search over the last interval; otherwise
+   *  it steps through the postings one at a time.
+   *  @param target The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  private int docIteratorFindIndex (int target) {
+
+    int df = this.invertedList.df;
+    int start = this.docIteratorIndex;
+    int index = (start < df) ? this.invertedList.skip (start, target) : start;
+    long touched = 0;
+
+    if (! this.gallopingAdvance) {
+      while (index < df) {
+        touched ++;
+        if (this.listDocid (index) >= target) {
+          break;
+        }
+        index ++;
+      }
+    } else if (index < df) {
+
+      //  Exponential search.  Invariant:  getDocid (lo) < target, and
+      //  hi == df or getDocid (hi) >= target.
+
+      touched ++;
+      if (this.listDocid (index) < target) {
+        int lo = index;
+        int hi = index + 1;
+        int step = 1;
+
+        while (hi < df) {
+          touched ++;
+          if (this.listDocid (hi) >= target) {
+            break;
+          }
+          lo = hi;
+          step <<= 1;
+          hi = (step > df - lo) ? df : lo + step;
+        }
+
+        //  Binary search in (lo, hi].
+
+        while (hi - lo > 1) {
+          int mid = (lo + hi) >>> 1;
+          touched ++;
+          if (this.listDocid (mid) >= target) {
+            hi = mid;
+          } else {
+            lo = mid;
+          }
+        }
+
+        index = hi;
+      }
     }
-           
-    this.locIteratorIndex = 0;
+
+    this.postingsTouched += touched;
+    this.postingsSkipped += Math.max (0, (index - start) - touched);
+    return index;
+  }
+
+  /**
+   *  Get the n'th document id from the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The internal document id.
+   */
+  private int listDocid (int n) {
+    if (this.compressedCursor != null)
+      return ((InvListCompressed) this.invertedList).getDocid (this.compressedCursor, n);
+    return this.invertedList.getDocid (n);
+  }
+
+  /**
+   *  Get the term frequency in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The document's term frequency.
+   */
+  private int listTf (int n) {
+    if (this.compressedCursor != null)
+      return ((InvListCompressed) this.invertedList).getTf (this.compressedCursor, n);
+    return this.invertedList.getTf (n);
+  }
+
+  /**
+   *  Get the i'th position in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param i The index of the requested position.
+   *  @return The position.
+   */
+  private int listPosition (int n, int i) {
+    if (this.compressedCursor != null)
+      return ((InvListCompressed) this.invertedList).getPosition (this.compressedCursor, n, i);
+    return this.invertedList.getPosition (n, i);
   }
 
   /**
@@ -98,7 +239,7 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -109,16 +250,19 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int docIteratorGetMatch () {
-    return this.invertedList.getDocid (this.docIteratorIndex);
+    return this.listDocid (this.docIteratorIndex);
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the i'th location in the document that the docIterator
+   *  points to now.  Unlike the locIterator, this does not change any
+   *  iterator state, so query operators can use it to implement their
+   *  own location matching.
+   *  @param i The index of the location, 0 <= i < getTfOfDoc().
+   *  @return The document location.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchPosition (int i) {
+    return this.listPosition (this.docIteratorIndex, i);
   }
 
   /**
@@ -150,16 +294,49 @@ public abstract class QryIop extends Qry {
     return this.invertedList.df;
   }
 
+  /**
+   *  Get the largest term frequency in the operator's inverted list,
+   *  e.g., to bound the score of any document.  It is an error to call
+   *  this method before the object's initialize method is called.
+   *  @return The maximum term frequency, or 0 if the list is empty.
+   */
+  public int getMaxTf () {
+    if (this.maxTf < 0) {
+      int max = 0;
+      for (int i = 0; i < this.invertedList.df; i++) {
+        max = Math.max (max, this.listTf (i));
+      }
+      this.maxTf = max;
+    }
+    return this.maxTf;
+  }
+
+  /**
+   *  Get the number of postings that docIterator advances passed over
+   *  without examining them.
+   *  @return The number of postings skipped.
+   */
+  public long getPostingsSkipped () {
+    return this.postingsSkipped;
+  }
+
+  /**
+   *  Get the number of postings that docIterator advances examined.
+   *  @return The number of postings touched.
+   */
+  public long getPostingsTouched () {
+    return this.postingsTouched;
+  }
+
   public int getTfOfDoc () {
     if (this.invertedList == null) {
       System.out.println("Invlist null");
       return 0;
-    } else if (this.invertedList.postings.size() <= this.docIteratorIndex) {
+    } else if (this.invertedList.df <= this.docIteratorIndex) {
       // System.out.println("No more docs to match to");
       return 0; 
     }
-    return docIteratorGetMatchPosting().tf;
-    // return this.invertedList.getTf (this.docIteratorIndex);
+    return this.listTf (this.docIteratorIndex);
   }
 
   /**
@@ -177,14 +354,77 @@ public abstract class QryIop extends Qry {
    */
   protected abstract void evaluate () throws IOException;
 
+  /**
+   *  Get an empty inverted list for the operator's result, in the
+   *  format that the retrieval model selected.
+   *  @param fieldString The field that the inverted list covers.
+   *  @return An empty inverted list.
+   */
+  protected InvList newInvList (String fieldString) {
+    if (this.postingsArena != null) {
+      return new InvListOffHeap (fieldString, this.postingsArena);
+    } else if (this.compressedPostings) {
+      return new InvListCompressed (fieldString);
+    } else {
+      return new InvList (fieldString);
+    }
+  }
+
+  /**
+   *  Get the inverted list of a term from the index, in the format
+   *  that the retrieval model selected.  Positions are read only if
+   *  they are required.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected InvList newInvList (String termString, String fieldString)
+    throws IOException {
+    if (this.postingsArena != null) {
+      return new InvListOffHeap (termString, fieldString,
+				 this.positionsRequired, this.postingsArena);
+    } else if (this.compressedPostings) {
+      return new InvListCompressed (termString, fieldString,
+				    this.positionsRequired);
+    } else {
+      return new InvList (termString, fieldString, this.positionsRequired);
+    }
+  }
+
+  /**
+   *  Indicates whether the operator's locations are used, i.e., whether
+   *  its inverted list must have positions.
+   *  @return True if positions are required.
+   */
+  public boolean getPositionsRequired () {
+    return this.positionsRequired;
+  }
+
+  /**
+   *  Set whether the operator's locations are used.  If they are not,
+   *  the locIterator and docIteratorGetMatchPosition must not be used.
+   *  @param required True if positions are required.
+   */
+  public void setPositionsRequired (boolean required) {
+    this.positionsRequired = required;
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
    *  can begin.
-   *  @param r A retrieval model (that is ignored)
+   *  @param r A retrieval model that may select the docIterator advance mode
    */
   public void initialize(RetrievalModel r) throws IOException {
 
+    this.gallopingAdvance = (r != null) && r.gallopingAdvance;
+    this.compressedPostings = (r != null) && r.compressedPostings;
+    this.postingsArena = (r != null) ? r.postingsArena : null;
+    this.postingsTouched = 0;
+    this.postingsSkipped = 0;
+    this.maxTf = -1;
+
     //  Initialize the query arguments (if any).
 
     for (Qry q_i: this.args) {
@@ -197,15 +437,17 @@ public abstract class QryIop extends Qry {
 
     //  Initialize the internal iterators.
 
+    this.compressedCursor = (this.invertedList instanceof InvListCompressed) ?
+      ((InvListCompressed) this.invertedList).newCursor () : null;
     this.docIteratorIndex = 0;
     this.locIteratorIndex = 0;
     if (this instanceof QryIopTerm) {
       QryIopTerm q = (QryIopTerm)(this);
       // System.out.println("Initializing..." + q.toString());
-      // System.out.println("Num of postings: " + q.invertedList.postings.size());
+      // System.out.println("Num of postings: " + q.invertedList.df);
       /* 
       for (int i = 0; i < 10; ++i) {
-        System.out.println("Posting no. " + i + ", docid :"  + q.invertedList.postings.get(i).docid);
+        System.out.println("Posting no. " + i + ", docid :"  + q.invertedList.getDocid(i));
       }
       */
     }
@@ -225,11 +467,10 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.getTfOfDoc ();
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (this.docIteratorGetMatchPosition (this.locIteratorIndex) <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -239,8 +480,7 @@ public abstract class QryIop extends Qry {
    *  any possible location.
    */
   public void locIteratorFinish () {
-    this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+    this.locIteratorIndex = this.getTfOfDoc ();
   }
 
   /**
@@ -251,8 +491,7 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.docIteratorGetMatchPosition (this.locIteratorIndex);
   }
 
   /**
@@ -261,8 +500,16 @@ public abstract class QryIop extends Qry {
    *  @return True if the iterator currently points to a location.
    */
   public boolean locIteratorHasMatch () {
-    return (this.locIteratorIndex <
-            this.invertedList.getTf (this.docIteratorIndex));
+    return (this.locIteratorIndex < this.getTfOfDoc ());
+  }
+
+  /**
+   *  Reset the locIterator to the first location of the document that
+   *  the docIterator points to now.  Subclasses that provide their own
+   *  docIterator must call this whenever the docIterator moves.
+   */
+  protected void locIteratorReset () {
+    this.locIteratorIndex = 0;
   }
 
   
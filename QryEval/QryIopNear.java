@@ -5,177 +5,159 @@ import java.io.*;
 import java.util.*;
 
 /**
- *  The SYN operator for all retrieval models.
+ *  The NEAR/n operator for all retrieval models.  A document matches
+ *  at a location if the arguments occur in order, each at most n
+ *  positions after the previous one.  The location is the position of
+ *  the last argument.
+ *  <p>
+ *  The positions of each argument in the current document are copied
+ *  into reusable int arrays, and the match is found with one int cursor
+ *  per argument, so evaluation does not allocate memory per document.
+ *  </p>
  */
 public class QryIopNear extends QryIop {
 
-  
-
   private int distance;
 
+  /**
+   *  Reusable per-argument buffers:  the positions and term frequency
+   *  of each argument in the current document, and a cursor into them.
+   */
+  private int[][] positions = new int[0][];
+  private int[] tfs = new int[0];
+  private int[] cursors = new int[0];
+
+  /**
+   *  A reusable buffer for the matching locations in the current document.
+   */
+  private int[] matchingLocations = new int[16];
+
   public QryIopNear(int distance) {
     this.distance = distance;
   }
 
-  // Returns -1 if none found (all have been advanced)
-  private int findMatchingDocId (ArrayList<Integer> docIterators) {
-    ArrayList<Integer> smallests = new ArrayList<>();
-    while (true) {
-      QryIop first_iop = (QryIop)(this.args.get(0));
-      if (!first_iop.docIteratorHasMatch(null)) {
-        return -1;
-      }
-      boolean same = true;
-      int smallest_docid = first_iop.docIteratorGetMatch();
-      smallests.clear();      
-      smallests.add(0);
-
-      for (int i = 1; i < docIterators.size(); i++) { 
-        QryIop q_iop = (QryIop)(this.args.get(i));
-        if (!q_iop.docIteratorHasMatch(null)) {
-          return -1;
-        } 
-        int docid = q_iop.docIteratorGetMatch(); 
-        if (docid != smallest_docid) {
-          same = false; 
-          if (docid < smallest_docid) {
-            smallest_docid = docid; 
-            smallests.clear();
-            smallests.add(i);
-          }
-        } else {
-          smallests.add(i); 
-        }
-      } 
-      if (same) {
-        return smallest_docid;
-      } 
-      for (int i : smallests) {
-        QryIop q_iop = (QryIop)(this.args.get(i)); 
-        q_iop.docIteratorAdvancePast(smallest_docid);
-      } 
-    } 
-  }
+  /**
+   *  Evaluate the query operator; the result is an internal inverted
+   *  list that may be accessed via the internal iterators.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void evaluate () throws IOException {
+    this.invertedList = this.newInvList (this.getField());
+    if (args.size () == 0) {
+      return;
+    }
 
-  private boolean alignAllLocationIterators (ArrayList<InvList.DocPosting> docPostings, 
-                                             ArrayList<Integer> locationIterators) {
-    // Assumes all are already at this docid;
-    // System.out.println("Sizes: " + locationIterators.size() + ", " + docPostings.size());
-    if (locationIterators.get(0) >= docPostings.get(0).positions.size())  {
-      return false;
+    int n = this.args.size ();
+
+    if (this.positions.length != n) {
+      this.positions = new int[n][16];
+      this.tfs = new int[n];
+      this.cursors = new int[n];
     }
 
-    int left_location = docPostings.get(0).positions.get(locationIterators.get(0));
-    for (int i = 1; i < this.args.size(); i++) {
-      int locationIt = locationIterators.get(i);
-      Vector<Integer> positions = docPostings.get(i).positions;
-      while (true) {
-        if (locationIt >= positions.size()) {
-          break; 
-        }
-        int location = positions.get(locationIt);
-        if (location > left_location) {
-          left_location = location;
-          break; 
-        }
-        locationIt++;
+    //  Each pass of the loop adds 1 document to result inverted list
+    //  until one of the argument inverted lists is depleted.
+
+    while (this.docIteratorHasMatchAll (null)) {
+      int docid = this.args.get (0).docIteratorGetMatch ();
+
+      for (int i = 0; i < n; i++) {
+        this.loadPositions (i);
       }
-      if (locationIt >= positions.size()) {
-        return false; 
+
+      int numMatches = this.matchLocations ();
+
+      if (numMatches > 0) {
+        this.invertedList.appendPosting (docid, this.matchingLocations, numMatches);
+      }
+
+      // Finish with this doc
+      for (Qry q_i : this.args) {
+        q_i.docIteratorAdvancePast (docid);
       }
-      locationIterators.set(i, locationIt);
     }
-    return true;
   }
 
-  private void incrementAllLocationIterators (ArrayList<Integer> locationIterators) {
-    for (int i = 0; i < locationIterators.size(); i++) {
-      locationIterators.set(i, locationIterators.get(i) + 1); 
+  /**
+   *  Copy the positions of the i'th argument in the current document
+   *  into positions[i], and reset its cursor.
+   *  @param i The index of the argument.
+   */
+  private void loadPositions (int i) {
+
+    QryIop q_i = this.getArg (i);
+    int tf = q_i.getTfOfDoc ();
+
+    if (tf > this.positions[i].length) {
+      this.positions[i] = new int[Math.max (tf, 2 * this.positions[i].length)];
     }
-  }
 
-  // Returns -1 if not correct, otherwise the right most location iterator
-  private int checkAllLocationIterators (ArrayList<InvList.DocPosting> docPostings,
-                                          ArrayList<Integer> locationIterators) {
-    int left_location = docPostings.get(0).positions.get(locationIterators.get(0));
-    for (int i = 1; i < docPostings.size(); i++) {
-      int cur_location = docPostings.get(i).positions.get(locationIterators.get(i));
-      if (cur_location - left_location > distance) {
-        return -1; 
-      }
-      left_location = cur_location;
+    int[] p = this.positions[i];
+
+    for (int j = 0; j < tf; j++) {
+      p[j] = q_i.docIteratorGetMatchPosition (j);
     }
-    // Final left_location is location of right most doc
-    return left_location;
+
+    this.tfs[i] = tf;
+    this.cursors[i] = 0;
   }
 
   /**
-   *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
-   *  @throws IOException Error accessing the Lucene index.
+   *  Find the matching locations in the current document.  For each
+   *  position of the first argument, the cursor of each later argument
+   *  moves to its first position after the previous argument's; if the
+   *  gaps are all within the distance, the match is recorded and every
+   *  cursor moves past it, otherwise the first argument's cursor moves.
+   *  The search stops as soon as any argument runs out of positions.
+   *  @return The number of matching locations in matchingLocations.
    */
-  protected void evaluate () throws IOException {
-    this.invertedList = new InvList (this.getField());
-    if (args.size () == 0) {
-      return;
-    }
+  private int matchLocations () {
 
-    ArrayList<Integer> docIterators = new ArrayList<>();
-    for (Qry q_i: this.args) {
-      QryIop q_iop = (QryIop)q_i;
+    int n = this.tfs.length;
+    int numMatches = 0;
 
-      // If any of the terms doesn't even have a match, we already have an
-      // empty inv list
-      if (!q_iop.docIteratorHasMatch(null)){
-        return;
-      }
-      docIterators.add(q_iop.docIteratorGetMatch());
-    }
-    //  Each pass of the loop adds 1 document to result inverted list
-    //  until all of the argument inverted lists are depleted.
+    while (this.cursors[0] < this.tfs[0]) {
+      int prev = this.positions[0][this.cursors[0]];
+      boolean match = true;
 
-    ArrayList<InvList.DocPosting> docPostings = new ArrayList<>(); 
-    while (true) {
-      int docid = findMatchingDocId(docIterators);
-      if (docid == -1) {
-        return; 
-      }
-      // 396922 
-      docPostings.clear();  
-      ArrayList<Integer> locationIterators = new ArrayList<>(); 
-      for (Qry q_i : this.args) {
-        QryIop q_iop = (QryIop)q_i;
-        InvList.DocPosting posting = q_iop.docIteratorGetMatchPosting();
-        if (docid == 396922) {
-          System.out.println("Posting docid: " + posting.docid + ", and size: " + posting.positions.size()); 
+      for (int i = 1; i < n; i++) {
+        int[] p = this.positions[i];
+        int tf = this.tfs[i];
+        int c = this.cursors[i];
+
+        while ((c < tf) && (p[c] <= prev)) {
+          c ++;
         }
-        // System.out.println("Posting docid: " + posting.docid + ", and size: " + posting.positions.size());
-        docPostings.add(posting);
-        locationIterators.add(0);
-      }
 
-      ArrayList<Integer> matchingLocations = new ArrayList<>();  
-      while (alignAllLocationIterators(docPostings, locationIterators)) {
-        int rightmost_location = checkAllLocationIterators(docPostings, locationIterators);
-        if (rightmost_location != -1) {
-          incrementAllLocationIterators(locationIterators);
-          matchingLocations.add(rightmost_location);
-        } else {
-          // Increment leftmost
-          locationIterators.set(0, locationIterators.get(0) + 1); 
+        this.cursors[i] = c;
+
+        if (c == tf) {
+          return numMatches;		// No more matches are possible.
         }
+
+        if (p[c] - prev > this.distance) {
+          match = false;
+          break;
+        }
+
+        prev = p[c];
       }
-      if (!matchingLocations.isEmpty()) {
-        // System.out.println("Docid: " + docid + ", extern: " + Idx.getExternalDocid(docid));
-        invertedList.appendPosting(docid, matchingLocations);
-      }
-      // Finish with this doc
-      for (Qry q_i : this.args) {
-        QryIop q_iop = (QryIop)q_i;
-        q_iop.docIteratorAdvancePast(docid);
+
+      if (match) {
+        if (numMatches == this.matchingLocations.length) {
+          this.matchingLocations =
+            Arrays.copyOf (this.matchingLocations, 2 * numMatches);
+        }
+        this.matchingLocations[numMatches++] = prev;
+
+        for (int i = 0; i < n; i++) {
+          this.cursors[i] ++;
+        }
+      } else {
+        this.cursors[0] ++;
       }
-       
     }
-  }
 
+    return numMatches;
+  }
 }
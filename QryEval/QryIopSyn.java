@@ -9,6 +9,11 @@ import java.util.*;
  */
 public class QryIopSyn extends QryIop {
 
+  /**
+   *  A reusable buffer for the union of the argument locations.
+   */
+  private int[] positions = new int[16];
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -19,7 +24,7 @@ public class QryIopSyn extends QryIop {
     //  Create an empty inverted list.  If there are no query arguments,
     //  this is the final result.
     
-    this.invertedList = new InvList (this.getField());
+    this.invertedList = this.newInvList (this.getField());
 
     if (args.size () == 0) {
       return;
@@ -53,20 +58,43 @@ public class QryIopSyn extends QryIop {
       //  Note:  This implementation assumes that a location will not appear
       //  in two or more arguments.  #SYN (apple apple) would break it.
 
-      List<Integer> positions = new ArrayList<Integer>();
+      //  If the locations are not required, the arguments don't have
+      //  positions, and the posting only needs the term frequency.
+
+      int count = 0;
+      boolean withPositions = this.getPositionsRequired ();
 
       for (Qry q_i: this.args) {
         if (q_i.docIteratorHasMatch (null) &&
             (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
+          QryIop q_iop = (QryIop) q_i;
+          int tf_i = q_iop.getTfOfDoc ();
+
+          if (! withPositions) {
+            count += tf_i;
+            q_i.docIteratorAdvancePast (minDocid);
+            continue;
+          }
+
+          if (count + tf_i > this.positions.length) {
+            this.positions =
+              Arrays.copyOf (this.positions,
+                             Math.max (count + tf_i, 2 * this.positions.length));
+          }
+
+          for (int j = 0; j < tf_i; j++) {
+            this.positions[count++] = q_iop.docIteratorGetMatchPosition (j);
+          }
           q_i.docIteratorAdvancePast (minDocid);
 	}
       }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+      if (withPositions) {
+        Arrays.sort (this.positions, 0, count);
+        this.invertedList.appendPosting (minDocid, this.positions, count);
+      } else {
+        this.invertedList.appendPosting (minDocid, count);
+      }
     }
   }
 
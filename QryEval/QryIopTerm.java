@@ -4,18 +4,50 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.Impact;
+import org.apache.lucene.index.PostingsEnum;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the term's inverted list is materialized when the
+ *  operator is initialized.  If the retrieval model asks for streaming
+ *  terms, the operator instead reads postings from the index as its
+ *  docIterator advances (see PostingsIterator), and df and ctf come
+ *  from the index statistics.  The same is done when the operator is
+ *  restricted to one segment of the index (see setSegment), but then
+ *  document ids are segment-local.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
   private String term;
 
+  /**
+   *  The streaming iterator, or null if the inverted list is materialized.
+   */
+  private PostingsIterator stream = null;
+  private boolean streaming = false;
+  private int streamDf = 0;
+  private int streamCtf = 0;
+
+  /**
+   *  If not null, the operator is evaluated over just this segment of
+   *  the index, by streaming its postings, with segment-local document
+   *  ids.  df and ctf are still index-wide statistics.
+   */
+  private SegmentContext segment = null;
+
+  /**
+   *  If true, a segment's postings are read with Lucene's impacts, so
+   *  that block-level score bounds are available (see advanceShallow).
+   */
+  private boolean impactsRequired = false;
+
   /**
    *  The term is assumed to match the body field.
    *  @param term A term string.
@@ -35,13 +67,253 @@ public class QryIopTerm extends QryIop {
     this.field = field;
   }
 
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+    if (this.stream == null) {
+      super.docIteratorAdvancePast (docid);
+    } else {
+      this.streamAdvance (docid + 1);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+    if (this.stream == null) {
+      super.docIteratorAdvanceTo (docid);
+    } else {
+      this.streamAdvance (docid);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+    if (this.stream == null) {
+      super.docIteratorFinish ();
+    } else {
+      this.streamAdvance (PostingsIterator.NO_MORE_DOCS);
+    }
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    if (this.stream == null) {
+      return super.docIteratorGetMatch ();
+    } else {
+      return this.stream.docID ();
+    }
+  }
+
+  /**
+   *  Return the i'th location in the document that the docIterator
+   *  points to now.
+   *  @param i The index of the location, 0 <= i < getTfOfDoc().
+   *  @return The document location.
+   */
+  public int docIteratorGetMatchPosition (int i) {
+    if (this.stream == null) {
+      return super.docIteratorGetMatchPosition (i);
+    }
+
+    try {
+      return this.stream.getPosition (i);
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (this.stream == null) {
+      return super.docIteratorHasMatch (r);
+    } else {
+      return (this.stream.docID () != PostingsIterator.NO_MORE_DOCS);
+    }
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
+   *  list that may be accessed via the internal iterators.  In streaming
+   *  or segment mode the result is an iterator positioned at the first
+   *  posting.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+    if (this.streaming || (this.segment != null)) {
+      int flags = this.getPositionsRequired () ?
+        PostingsEnum.POSITIONS : PostingsEnum.FREQS;
+      this.stream = (this.segment == null) ?
+        new PostingsIterator (this.term, this.field, flags,
+                              Idx.INDEXREADER.leaves (), this.impactsRequired) :
+        new PostingsIterator (this.term, this.field, flags, this.segment,
+                              this.impactsRequired);
+      this.stream.nextDoc ();
+      this.streamDf = (int) Idx.getDocFreq (this.field, this.term);
+      this.streamCtf = (int) Idx.getTotalTermFreq (this.field, this.term);
+    } else {
+      this.stream = null;
+
+      //  Terms repeat across queries, so check the postings cache first.
+
+      boolean withPositions = this.getPositionsRequired ();
+      this.invertedList =
+        Idx.getCachedPostings (this.field, this.term, withPositions);
+
+      if (this.invertedList == null) {
+        this.invertedList = this.newInvList (this.term, this.field);
+        Idx.putCachedPostings (this.field, this.term, withPositions,
+                               this.invertedList);
+      }
+    }
+  }
+
+  /**
+   *  Prepare the impacts of the postings block that contains a
+   *  document, without moving the docIterator.  The operator must be
+   *  restricted to a segment and read impacts, and the document must be
+   *  at or after the docIterator's current document in that segment.
+   *  @param docid A segment-local document id.
+   *  @return The segment-local id of the last document in the block.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int advanceShallow (int docid) throws IOException {
+    return this.stream.advanceShallow (docid);
+  }
+
+  /**
+   *  Get the impacts of the postings block that advanceShallow
+   *  prepared.  Each impact is a (tf, norm) pair; every document in the
+   *  block has a tf and norm that are no better than one of the pairs.
+   *  @return The impacts.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public List<Impact> getBlockImpacts () throws IOException {
+    return this.stream.getImpacts ();
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) associated with this
+   *  query operator.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    return (this.stream == null) ? super.getCtf () : this.streamCtf;
+  }
+
+  /**
+   *  Get the document frequency (df) associated with this query
+   *  operator.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    return (this.stream == null) ? super.getDf () : this.streamDf;
+  }
+
+  /**
+   *  Get the largest term frequency in the operator's inverted list.
+   *  A streaming operator doesn't know it, so it returns
+   *  Integer.MAX_VALUE, which is an upper bound.
+   *  @return The maximum term frequency, or an upper bound on it.
+   */
+  public int getMaxTf () {
+    return (this.stream == null) ? super.getMaxTf () : Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Get the term frequency in the document that the docIterator
+   *  points to now, or 0 if there is no such document.
+   *  @return The term frequency.
+   */
+  public int getTfOfDoc () {
+    if (this.stream == null) {
+      return super.getTfOfDoc ();
+    } else if (! this.docIteratorHasMatch (null)) {
+      return 0;
+    }
+
+    try {
+      return this.stream.freq ();
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Initialize the query operator, including any internal iterators;
+   *  this method must be called before iteration can begin.
+   *  @param r A retrieval model that indicates whether to stream postings
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r) throws IOException {
+    this.streaming = (r != null) && r.streamingTerms;
+    super.initialize (r);
+  }
+
+  /**
+   *  Restrict the operator to one segment of the index, with
+   *  segment-local document ids, or remove the restriction.  This takes
+   *  effect when the operator is initialized.
+   *  @param segment A segment of the current index, or null.
+   */
+  public void setSegment (SegmentContext segment) {
+    this.segment = segment;
+  }
+
+  /**
+   *  Get the term that the operator matches.
+   *  @return The processed (stemmed, lower-cased, etc) term string.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
+  /**
+   *  Get the segment that the operator is restricted to.
+   *  @return A segment of the current index, or null.
+   */
+  public SegmentContext getSegment () {
+    return this.segment;
+  }
+
+  /**
+   *  Indicate whether a segment's postings should be read with
+   *  impacts.  This takes effect when the operator is initialized.
+   *  @param required True if impacts are required.
+   */
+  public void setImpactsRequired (boolean required) {
+    this.impactsRequired = required;
+  }
+
+  /**
+   *  Advance the streaming iterator to the target document, or beyond
+   *  if it doesn't exist.
+   *  @param target The document's internal document id
+   */
+  private void streamAdvance (int target) {
+    try {
+      this.stream.advance (target);
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+    this.locIteratorReset ();
   }
 
   /**
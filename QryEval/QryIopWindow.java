@@ -5,176 +5,284 @@ import java.io.*;
 import java.util.*;
 
 /**
- *  The SYN operator for all retrieval models.
+ *  The WINDOW/n operator for all retrieval models.  A document matches
+ *  at a location if the arguments occur, in any order, in a window of
+ *  fewer than n positions.  The location is the last position in the
+ *  window.
+ *  <p>
+ *  The positions of each argument in the current document are copied
+ *  into reusable int arrays.  The argument cursors are kept in a
+ *  min-heap ordered by their current positions, and the largest current
+ *  position is tracked as cursors move, so moving the minimum cursor
+ *  costs O(log k) for k arguments and evaluation does not allocate
+ *  memory per document.
+ *  </p>
  */
 public class QryIopWindow extends QryIop {
 
   private int distance;
 
+  /**
+   *  Reusable per-argument buffers:  the positions and term frequency
+   *  of each argument in the current document, and a cursor into them.
+   */
+  private int[][] positions = new int[0][];
+  private int[] tfs = new int[0];
+  private int[] cursors = new int[0];
+
+  /**
+   *  A min-heap of argument indexes, ordered by the position at each
+   *  argument's cursor, and a buffer for the arguments that are popped.
+   */
+  private int[] heap = new int[0];
+  private int heapSize = 0;
+  private int[] popped = new int[0];
+
+  /**
+   *  A reusable buffer for the matching locations in the current document.
+   */
+  private int[] matchingLocations = new int[16];
+
   public QryIopWindow(int distance) {
     this.distance = distance;
   }
 
-  // Returns -1 if none found (all have been advanced)
-  private int findMatchingDocId (ArrayList<Integer> docIterators) {
-    ArrayList<Integer> smallests = new ArrayList<>();
-    while (true) {
-      QryIop first_iop = (QryIop)(this.args.get(0));
-      if (!first_iop.docIteratorHasMatch(null)) {
-        return -1;
+  /**
+   *  Evaluate the query operator; the result is an internal inverted
+   *  list that may be accessed via the internal iterators.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void evaluate () throws IOException {
+    this.invertedList = this.newInvList (this.getField());
+    if (args.size () == 0) {
+      return;
+    }
+
+    int n = this.args.size ();
+
+    if (this.positions.length != n) {
+      this.positions = new int[n][16];
+      this.tfs = new int[n];
+      this.cursors = new int[n];
+      this.heap = new int[n];
+      this.popped = new int[n];
+    }
+
+    //  Each pass of the loop adds 1 document to result inverted list
+    //  until one of the argument inverted lists is depleted.
+
+    while (this.docIteratorHasMatchAll (null)) {
+      int docid = this.args.get (0).docIteratorGetMatch ();
+
+      for (int i = 0; i < n; i++) {
+        this.loadPositions (i);
       }
-      boolean same = true;
-      int smallest_docid = first_iop.docIteratorGetMatch();
-      smallests.clear();      
-      smallests.add(0);
-
-      for (int i = 1; i < docIterators.size(); i++) { 
-        QryIop q_iop = (QryIop)(this.args.get(i));
-        if (!q_iop.docIteratorHasMatch(null)) {
-          return -1;
-        } 
-        int docid = q_iop.docIteratorGetMatch(); 
-        if (docid != smallest_docid) {
-          same = false; 
-          if (docid < smallest_docid) {
-            smallest_docid = docid; 
-            smallests.clear();
-            smallests.add(i);
-          }
-        } else {
-          smallests.add(i); 
-        }
-      } 
-      if (same) {
-        return smallest_docid;
-      } 
-      for (int i : smallests) {
-        QryIop q_iop = (QryIop)(this.args.get(i)); 
-        q_iop.docIteratorAdvancePast(smallest_docid);
-      } 
-    } 
+
+      int numMatches = this.matchLocations ();
+
+      if (numMatches > 0) {
+        this.invertedList.appendPosting (docid, this.matchingLocations, numMatches);
+      }
+
+      // Finish with this doc
+      for (Qry q_i : this.args) {
+        q_i.docIteratorAdvancePast (docid);
+      }
+    }
   }
 
-  private void incrementAllLocationIterators (ArrayList<Integer> locationIterators) {
-    for (int i = 0; i < locationIterators.size(); i++) {
-      locationIterators.set(i, locationIterators.get(i) + 1); 
+  /**
+   *  Copy the positions of the i'th argument in the current document
+   *  into positions[i], and reset its cursor.
+   *  @param i The index of the argument.
+   */
+  private void loadPositions (int i) {
+
+    QryIop q_i = this.getArg (i);
+    int tf = q_i.getTfOfDoc ();
+
+    if (tf > this.positions[i].length) {
+      this.positions[i] = new int[Math.max (tf, 2 * this.positions[i].length)];
+    }
+
+    int[] p = this.positions[i];
+
+    for (int j = 0; j < tf; j++) {
+      p[j] = q_i.docIteratorGetMatchPosition (j);
     }
+
+    this.tfs[i] = tf;
+    this.cursors[i] = 0;
   }
 
-  private void incrementMinLocationIterators (ArrayList<Integer> minIterators,
-                                              ArrayList<Integer> locationIterators) {
-    for (Integer i : minIterators) {
-      locationIterators.set(i, locationIterators.get(i) + 1); 
+  /**
+   *  Find the matching locations in the current document.  If the
+   *  window from the smallest to the largest cursor position is shorter
+   *  than the distance, the match is recorded and every cursor moves
+   *  past it; otherwise the cursors at the smallest position move.  The
+   *  search stops as soon as any argument runs out of positions.
+   *  @return The number of matching locations in matchingLocations.
+   */
+  private int matchLocations () {
+
+    int n = this.tfs.length;
+    int numMatches = 0;
+
+    if (! this.heapRebuild ())
+      return numMatches;
+
+    int max = this.heapMax ();
+
+    while (true) {
+      int min = this.position (this.heap[0]);
+
+      if (max - min < this.distance) {
+        if (numMatches == this.matchingLocations.length) {
+          this.matchingLocations =
+            Arrays.copyOf (this.matchingLocations, 2 * numMatches);
+        }
+        this.matchingLocations[numMatches++] = max;
+
+        //  Every cursor moves, so the heap is rebuilt.
+
+        for (int i = 0; i < n; i++) {
+          this.cursors[i] ++;
+        }
+
+        if (! this.heapRebuild ())
+          return numMatches;
+
+        max = this.heapMax ();
+      } else {
+
+        //  Pop each argument at the smallest position, move its cursor
+        //  once, and push it back.
+
+        int numPopped = 0;
+
+        while ((this.heapSize > 0) &&
+               (this.position (this.heap[0]) == min)) {
+          this.popped[numPopped++] = this.heapPop ();
+        }
+
+        for (int j = 0; j < numPopped; j++) {
+          int i = this.popped[j];
+
+          if (++ this.cursors[i] == this.tfs[i])
+            return numMatches;		// No more matches are possible.
+
+          max = Math.max (max, this.position (i));
+          this.heapPush (i);
+        }
+      }
     }
   }
 
-  private ArrayList<Integer> findMinLocations(ArrayList<InvList.DocPosting> docPostings,
-                              ArrayList<Integer> locationIterators) {
-    int smallest = Integer.MAX_VALUE;
-    ArrayList<Integer> smallest_indexes = new ArrayList<>();
-    for (int i = 0; i < locationIterators.size(); i++) {
-      int location = docPostings.get(i).positions.get(locationIterators.get(i));
-      if (location < smallest) {
-        smallest = location;
-        smallest_indexes.clear();
-        smallest_indexes.add(i);
-      } else if (location == smallest) {
-        smallest_indexes.add(i);
-      } 
+  /**
+   *  Get the position at the i'th argument's cursor.
+   *  @param i The index of the argument.
+   *  @return The position.
+   */
+  private int position (int i) {
+    return this.positions[i][this.cursors[i]];
+  }
+
+  /**
+   *  Get the largest position at any argument's cursor.
+   *  @return The position.
+   */
+  private int heapMax () {
+    int max = Integer.MIN_VALUE;
+
+    for (int j = 0; j < this.heapSize; j++) {
+      max = Math.max (max, this.position (this.heap[j]));
     }
-    return smallest_indexes;
+
+    return max;
   }
-  
-  private ArrayList<Integer> findMaxLocations(ArrayList<InvList.DocPosting> docPostings,
-                              ArrayList<Integer> locationIterators) {
-    int largest = -1;
-    ArrayList<Integer> largest_indexes = new ArrayList<>();
-    for (int i = 0; i < locationIterators.size(); i++) {
-      int location = docPostings.get(i).positions.get(locationIterators.get(i));
-      if (location > largest) {
-        largest = location;
-        largest_indexes.clear();
-        largest_indexes.add(i);
-      } else if (location == largest) {
-        largest_indexes.add(i);
-      } 
+
+  /**
+   *  Remove the argument with the smallest position from the heap.
+   *  @return The index of the argument.
+   */
+  private int heapPop () {
+    int top = this.heap[0];
+    this.heap[0] = this.heap[--this.heapSize];
+    this.heapSiftDown (0);
+    return top;
+  }
+
+  /**
+   *  Add an argument to the heap.
+   *  @param i The index of the argument.
+   */
+  private void heapPush (int i) {
+    int j = this.heapSize++;
+    int key = this.position (i);
+
+    while (j > 0) {
+      int parent = (j - 1) >>> 1;
+
+      if (this.position (this.heap[parent]) <= key)
+        break;
+
+      this.heap[j] = this.heap[parent];
+      j = parent;
     }
-    return largest_indexes;
+
+    this.heap[j] = i;
   }
 
-  private boolean checkLocationIterators (ArrayList<InvList.DocPosting> docPostings, 
-                                          ArrayList<Integer> locationIterators) {
-    for (int i = 0; i < this.args.size(); i++) {
-      if (locationIterators.get(i) >= docPostings.get(i).positions.size()) {
+  /**
+   *  Put every argument in the heap.
+   *  @return false if some argument has no more positions, otherwise true.
+   */
+  private boolean heapRebuild () {
+
+    int n = this.tfs.length;
+
+    for (int i = 0; i < n; i++) {
+      if (this.cursors[i] >= this.tfs[i])
         return false;
-      }
+      this.heap[i] = i;
+    }
+
+    this.heapSize = n;
+
+    for (int j = (n >>> 1) - 1; j >= 0; j--) {
+      this.heapSiftDown (j);
     }
+
     return true;
   }
 
   /**
-   *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
-   *  @throws IOException Error accessing the Lucene index.
+   *  Move the j'th heap entry down until the heap is ordered.
+   *  @param j The index of a heap entry.
    */
-  protected void evaluate () throws IOException {
-    this.invertedList = new InvList (this.getField());
-    if (args.size () == 0) {
-      return;
-    }
+  private void heapSiftDown (int j) {
 
-    ArrayList<Integer> docIterators = new ArrayList<>();
-    for (Qry q_i: this.args) {
-      QryIop q_iop = (QryIop)q_i;
-      // If any of the terms doesn't even have a match, we already have an
-      // empty inv list
-      if (!q_iop.docIteratorHasMatch(null)){
-        return;
-      }
-      docIterators.add(q_iop.docIteratorGetMatch());
-    }
-    //  Each pass of the loop adds 1 document to result inverted list
-    //  until all of the argument inverted lists are depleted.
+    int i = this.heap[j];
+    int key = this.position (i);
 
-    ArrayList<InvList.DocPosting> docPostings = new ArrayList<>(); 
     while (true) {
-      int docid = findMatchingDocId(docIterators);
-      if (docid == -1) {
-        return; 
-      }
-      docPostings.clear();  
-      ArrayList<Integer> locationIterators = new ArrayList<>(); 
-      for (Qry q_i : this.args) {
-        QryIop q_iop = (QryIop)q_i;
-        InvList.DocPosting posting = q_iop.docIteratorGetMatchPosting();
-        docPostings.add(posting);
-        locationIterators.add(0);
-      }
+      int child = 2 * j + 1;
 
-      ArrayList<Integer> matchingLocations = new ArrayList<>();  
-      while (checkLocationIterators(docPostings, locationIterators)) {
-        ArrayList<Integer> mins = findMinLocations(docPostings, locationIterators); 
-        ArrayList<Integer> maxs = findMaxLocations(docPostings, locationIterators); 
-        assert(!mins.isEmpty() && !maxs.isEmpty());
-        int min_location = docPostings.get(mins.get(0)).positions.get(locationIterators.get(mins.get(0)));
-        int max_location = docPostings.get(maxs.get(0)).positions.get(locationIterators.get(maxs.get(0)));
-        if (max_location - min_location < distance) {
-          matchingLocations.add(max_location);
-          incrementAllLocationIterators(locationIterators);
-        } else {
-          incrementMinLocationIterators(mins, locationIterators);
-        }
-      }
-      
-      if (!matchingLocations.isEmpty()) {
-        invertedList.appendPosting(docid, matchingLocations);
-      }
-      // Finish with this doc
-      for (Qry q_i : this.args) {
-        QryIop q_iop = (QryIop)q_i;
-        q_iop.docIteratorAdvancePast(docid);
-      }
+      if (child >= this.heapSize)
+        break;
+
+      if ((child + 1 < this.heapSize) &&
+          (this.position (this.heap[child + 1]) <
+           this.position (this.heap[child])))
+        child ++;
+
+      if (key <= this.position (this.heap[child]))
+        break;
+
+      this.heap[j] = this.heap[child];
+      j = child;
     }
-  }
 
+    this.heap[j] = i;
+  }
 }
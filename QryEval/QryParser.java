@@ -193,6 +193,22 @@ public class QryParser {
     Qry q = parseString (queryString);		// An exact parse
     System.out.println("Parsed + "+q.toString());
     q = optimizeQuery (q);			// An optimized parse
+    planPositions (q, true);			// Which lists need positions
+    return q;
+  }
+
+  /**
+   *  Get another query tree for a query string that getQuery has
+   *  already parsed, e.g., so that each segment of the index can
+   *  evaluate its own tree.  Nothing is printed.
+   *  @param queryString The string representation of a query.
+   *  @return A new, uninitialized query tree.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static Qry copyQuery (String queryString) throws IOException {
+
+    Qry q = optimizeQuery (parseString (queryString));
+    planPositions (q, true);
     return q;
   }
 
@@ -271,6 +287,31 @@ public class QryParser {
 
   }
 
+  /**
+   *  Decide which inverted list operators need positions.  Only #NEAR
+   *  and #WINDOW use the locations of their arguments; #SYN needs the
+   *  locations of its arguments only if its own locations are needed;
+   *  score operators use term frequencies.  Lists that don't need
+   *  positions are read from the index without them, which is faster.
+   *  @param q The query tree.
+   *  @param required True if the parent of q uses its locations.
+   */
+  private static void planPositions (Qry q, boolean required) {
+
+    if (q instanceof QryIop) {
+      ((QryIop) q).setPositionsRequired (required);
+    }
+
+    boolean argsRequired =
+      (q instanceof QryIopNear) ||
+      (q instanceof QryIopWindow) ||
+      ((q instanceof QryIop) && required);
+
+    for (Qry q_i : q.args) {
+      planPositions (q_i, argsRequired);
+    }
+  }
+
   /**
    *  Parse a query string into a query tree.
    *  @param queryString The query string, in an Indri-style query
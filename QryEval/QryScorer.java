@@ -0,0 +1,759 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A query tree compiled for one retrieval model.  Each QrySop operator
+ *  becomes a scorer node that is specialized for the operator and the
+ *  retrieval model, with its weights in primitive arrays, so scoring a
+ *  document doesn't test the retrieval model's class, unbox weights, or
+ *  look them up in lists.  Each node class is final, so the JIT can
+ *  inline a node's calls to its arguments.
+ *  <p>
+ *  The query tree still iterates over documents; scorers only replace
+ *  getScore and getDefaultScore.  Each node does the same arithmetic,
+ *  in the same order, as the operator's own methods, so scores are
+ *  identical.  Operators (or operator and retrieval model combinations)
+ *  that can't be compiled are interpreted, i.e., scored by the query
+ *  tree as before.
+ *  </p>
+ */
+public abstract class QryScorer {
+
+  //  --------------- Constants and variables -----------------------
+
+  protected final QrySop op;
+  protected final RetrievalModel model;
+  protected final QryScorer[] args;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a scorer node.
+   *  @param op The operator that the node scores.
+   *  @param model The retrieval model that the node was compiled for.
+   *  @param args The scorers of the operator's arguments.
+   */
+  protected QryScorer (QrySop op, RetrievalModel model, QryScorer[] args) {
+    this.op = op;
+    this.model = model;
+    this.args = args;
+  }
+
+  /**
+   *  Compile an initialized query tree for a retrieval model.  The
+   *  scorer is valid until the query is initialized again.
+   *  @param q The root of an initialized query tree.
+   *  @param r The retrieval model that the query was initialized for.
+   *  @return The scorer of the query.
+   */
+  public static QryScorer compile (QrySop q, RetrievalModel r) {
+
+    QryScorer[] args = new QryScorer[q.args.size ()];
+
+    //  Scorers must not change when an operator throws an exception
+    //  (e.g., because it doesn't have a weight for every argument), so
+    //  such operators are interpreted.
+
+    if ((q instanceof QrySopWeighted) &&
+        (((QrySopWeighted) q).weights.size () != args.length)) {
+      return new Interpreted (q, r, args);
+    }
+
+    if (! (q instanceof QrySopScore)) {
+      if (args.length == 0) {
+        return new Interpreted (q, r, args);
+      }
+
+      for (int i = 0; i < args.length; i++) {
+        if (! (q.args.get (i) instanceof QrySop)) {
+          return new Interpreted (q, r, args);
+        }
+        args[i] = compile ((QrySop) q.args.get (i), r);
+      }
+    }
+
+    QryScorer scorer = null;
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      scorer = compileUnrankedBoolean (q, r, args);
+    } else if (r instanceof RetrievalModelRankedBoolean) {
+      scorer = compileRankedBoolean (q, r, args);
+    } else if (r instanceof RetrievalModelIndri) {
+      scorer = compileIndri (q, (RetrievalModelIndri) r, args);
+    } else if (r instanceof RetrievalModelBM25) {
+      scorer = compileBM25 (q, (RetrievalModelBM25) r, args);
+    }
+
+    return (scorer != null) ? scorer : new Interpreted (q, r, args);
+  }
+
+  /**
+   *  Compile an operator for the BM25 retrieval model.
+   *  @param q The operator.
+   *  @param r The retrieval model.
+   *  @param args The scorers of the operator's arguments.
+   *  @return The scorer, or null if the operator can't be compiled.
+   */
+  private static QryScorer compileBM25 (QrySop q, RetrievalModelBM25 r,
+                                        QryScorer[] args) {
+
+    if (q instanceof QrySopScore) {
+      return new BM25Score ((QrySopScore) q, r);
+    } else if ((q instanceof QrySopSum) || (q instanceof QrySopWSum)) {
+      return new Sum (q, r, args, QryEvalMaxScore.getMultipliers (q, r));
+    } else if (q instanceof QrySopWAnd) {
+      double[] multipliers = new double[args.length];
+
+      for (int i = 0; i < args.length; i++) {
+        double w = ((QrySopWAnd) q).weights.get (i);
+        multipliers[i] = ((r.k_3 + 1.0) * w) / (r.k_3 + w);
+      }
+
+      return new WeightedMin (q, r, args, multipliers);
+    } else if (q instanceof QrySopAnd) {
+      return new Min (q, r, args);
+    } else if (q instanceof QrySopOr) {
+      return new Max (q, r, args);
+    }
+
+    return null;
+  }
+
+  /**
+   *  Compile an operator for the Indri retrieval model.
+   *  @param q The operator.
+   *  @param r The retrieval model.
+   *  @param args The scorers of the operator's arguments.
+   *  @return The scorer, or null if the operator can't be compiled.
+   */
+  private static QryScorer compileIndri (QrySop q, RetrievalModelIndri r,
+                                         QryScorer[] args) {
+
+    if (q instanceof QrySopScore) {
+      return new IndriScore ((QrySopScore) q, r);
+    } else if (q instanceof QrySopAnd) {
+      double[] logWeights = new double[args.length];
+      Arrays.fill (logWeights, 1.0 / (double) args.length);
+      return new IndriAnd (q, r, args, logWeights);
+    } else if (q instanceof QrySopWAnd) {
+      QrySopWAnd wand = (QrySopWAnd) q;
+      double[] exponents = new double[args.length];
+
+      for (int i = 0; i < args.length; i++) {
+        exponents[i] = wand.weights.get (i) / wand.total_weight;
+      }
+
+      return new IndriWAnd (q, r, args, exponents);
+    } else if (q instanceof QrySopOr) {
+      return new IndriOr (q, r, args);
+    } else if (q instanceof QrySopSum) {
+      return new IndriSum (q, r, args);
+    } else if (q instanceof QrySopWSum) {
+      QrySopWSum wsum = (QrySopWSum) q;
+      double[] weights = new double[args.length];
+
+      for (int i = 0; i < args.length; i++) {
+        weights[i] = wsum.weights.get (i) / wsum.total_weight;
+      }
+
+      return new IndriWSum (q, r, args, weights);
+    }
+
+    return null;
+  }
+
+  /**
+   *  Compile an operator for the ranked Boolean retrieval model.  The
+   *  ranked Boolean #WSUM is interpreted.
+   *  @param q The operator.
+   *  @param r The retrieval model.
+   *  @param args The scorers of the operator's arguments.
+   *  @return The scorer, or null if the operator can't be compiled.
+   */
+  private static QryScorer compileRankedBoolean (QrySop q, RetrievalModel r,
+                                                 QryScorer[] args) {
+
+    if (q instanceof QrySopScore) {
+      return new TfScore ((QrySopScore) q, r);
+    } else if (q instanceof QrySopSum) {
+      return new Sum (q, r, args, ones (args.length));
+    } else if (q instanceof QrySopWAnd) {
+      double[] weights = new double[args.length];
+
+      for (int i = 0; i < args.length; i++) {
+        weights[i] = ((QrySopWAnd) q).weights.get (i);
+      }
+
+      return new WeightedMin (q, r, args, weights);
+    } else if ((q instanceof QrySopAnd) &&
+               (((QrySopAnd) q).getConjunctTerms () != null)) {
+      return new MinTf ((QrySopAnd) q, r, args);
+    } else if (q instanceof QrySopAnd) {
+      return new Min (q, r, args);
+    } else if (q instanceof QrySopOr) {
+      return new Max (q, r, args);
+    }
+
+    return null;
+  }
+
+  /**
+   *  Compile an operator for the unranked Boolean retrieval model.  The
+   *  unranked Boolean #WSUM is interpreted.
+   *  @param q The operator.
+   *  @param r The retrieval model.
+   *  @param args The scorers of the operator's arguments.
+   *  @return The scorer, or null if the operator can't be compiled.
+   */
+  private static QryScorer compileUnrankedBoolean (QrySop q, RetrievalModel r,
+                                                   QryScorer[] args) {
+
+    if (q instanceof QrySopScore) {
+      return new Constant (q, r, args, 1.0);
+    } else if ((q instanceof QrySopAnd) &&
+               (((QrySopAnd) q).getConjunctTerms () != null)) {
+      return new Constant (q, r, args, 1.0);
+    } else if (q instanceof QrySopSum) {
+      return new Sum (q, r, args, ones (args.length));
+    } else if ((q instanceof QrySopAnd) || (q instanceof QrySopWAnd)) {
+      return new BooleanAnd (q, r, args);
+    } else if (q instanceof QrySopOr) {
+      return new BooleanOr (q, r, args);
+    }
+
+    return null;
+  }
+
+  /**
+   *  Get an array of weights that are all 1.
+   *  @param n The length of the array.
+   *  @return The array.
+   */
+  private static double[] ones (int n) {
+    double[] weights = new double[n];
+    Arrays.fill (weights, 1.0);
+    return weights;
+  }
+
+  /**
+   *  Get a score for the document that the operator's
+   *  docIteratorHasMatch matched.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public abstract double getScore () throws IOException;
+
+  /**
+   *  Get the default score of a document that the operator doesn't
+   *  match.
+   *  @param docid The internal id of the document.
+   *  @return The default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getDefaultScore (long docid) throws IOException {
+    return this.op.getDefaultScore (this.model, docid);
+  }
+
+  /**
+   *  Get the log of the score of the document that the operator's
+   *  docIteratorHasMatch matched.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScore () throws IOException {
+    return Math.log (this.getScore ());
+  }
+
+  /**
+   *  Get the log of the default score of a document that the operator
+   *  doesn't match.
+   *  @param docid The internal id of the document.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogDefaultScore (long docid) throws IOException {
+    return Math.log (this.getDefaultScore (docid));
+  }
+
+  /**
+   *  Indicates whether the i'th argument matches a document.
+   *  @param i The index of the argument.
+   *  @param docid The internal id of the document.
+   *  @return True if the argument matches the document.
+   */
+  protected final boolean argMatches (int i, long docid) {
+    QrySop q_i = this.args[i].op;
+    return (q_i.docIteratorHasMatch (this.model) &&
+            (q_i.docIteratorGetMatch () == docid));
+  }
+
+  /**
+   *  An operator that is scored by the query tree.
+   */
+  static final class Interpreted extends QryScorer {
+
+    Interpreted (QrySop op, RetrievalModel model, QryScorer[] args) {
+      super (op, model, args);
+    }
+
+    public double getScore () throws IOException {
+      return this.op.getScore (this.model);
+    }
+
+    public double getLogScore () throws IOException {
+      return this.op.getLogScore (this.model);
+    }
+
+    public double getLogDefaultScore (long docid) throws IOException {
+      return this.op.getLogDefaultScore (this.model, docid);
+    }
+  }
+
+  /**
+   *  A SCORE operator that gives every match the same score (e.g.,
+   *  for the unranked Boolean retrieval model).
+   */
+  static final class Constant extends QryScorer {
+
+    private final double score;
+
+    Constant (QrySop op, RetrievalModel model, QryScorer[] args, double score) {
+      super (op, model, args);
+      this.score = score;
+    }
+
+    public double getScore () {
+      return this.score;
+    }
+  }
+
+  /**
+   *  The SCORE operator for the ranked Boolean retrieval model:  the
+   *  term frequency.
+   */
+  static final class TfScore extends QryScorer {
+
+    private final QryIop arg;
+
+    TfScore (QrySopScore op, RetrievalModel model) {
+      super (op, model, new QryScorer[0]);
+      this.arg = (QryIop) op.args.get (0);
+    }
+
+    public double getScore () {
+      return (double) this.arg.getTfOfDoc ();
+    }
+  }
+
+  /**
+   *  The SCORE operator for the BM25 retrieval model.
+   */
+  static final class BM25Score extends QryScorer {
+
+    private final QrySopScore score;
+    private final QryIop arg;
+
+    BM25Score (QrySopScore op, RetrievalModel model) {
+      super (op, model, new QryScorer[0]);
+      this.score = op;
+      this.arg = (QryIop) op.args.get (0);
+    }
+
+    public double getScore () {
+      return this.score.getScoreBM25 (this.arg.getTfOfDoc (),
+                                      this.arg.docIteratorGetMatch ());
+    }
+  }
+
+  /**
+   *  The SCORE operator for the Indri retrieval model.
+   */
+  static final class IndriScore extends QryScorer {
+
+    private final QrySopScore score;
+    private final QryIop arg;
+
+    IndriScore (QrySopScore op, RetrievalModel model) {
+      super (op, model, new QryScorer[0]);
+      this.score = op;
+      this.arg = (QryIop) op.args.get (0);
+    }
+
+    public double getScore () {
+      return this.score.getScoreIndri (this.arg.getTfOfDoc (),
+                                       this.arg.docIteratorGetMatch ());
+    }
+
+    public double getDefaultScore (long docid) {
+      return this.score.getDefaultScoreIndri (docid);
+    }
+
+    public double getLogDefaultScore (long docid) {
+      return this.score.getLogDefaultScoreIndri (docid);
+    }
+  }
+
+  /**
+   *  The weighted sum of the scores of the arguments that match the
+   *  document:  #SUM and #WSUM for BM25, and #SUM for the Boolean
+   *  retrieval models (weights of 1).
+   */
+  static final class Sum extends QryScorer {
+
+    private final double[] weights;
+
+    Sum (QrySop op, RetrievalModel model, QryScorer[] args, double[] weights) {
+      super (op, model, args);
+      this.weights = weights;
+    }
+
+    public double getScore () throws IOException {
+      double score = 0.0;
+      int docid = this.op.docIteratorGetMatch ();
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.argMatches (i, docid)) {
+          score += (this.args[i].getScore () * this.weights[i]);
+        }
+      }
+      return score;
+    }
+  }
+
+  /**
+   *  The smallest score of the arguments, or 0 if any argument's score
+   *  is 0:  #AND for BM25 and ranked Boolean.
+   */
+  static final class Min extends QryScorer {
+
+    Min (QrySop op, RetrievalModel model, QryScorer[] args) {
+      super (op, model, args);
+    }
+
+    public double getScore () throws IOException {
+      double score = Double.MAX_VALUE;
+
+      for (int i = 0; i < this.args.length; i++) {
+        double q_score = this.args[i].getScore ();
+        if (q_score == 0.0) {
+          return 0.0;
+        }
+        score = Math.min (score, q_score);
+      }
+      return score;
+    }
+  }
+
+  /**
+   *  #AND of SCORE operators for ranked Boolean, when conjunctions are
+   *  ordered:  the smallest tf of the aligned postings.
+   */
+  static final class MinTf extends QryScorer {
+
+    private final QrySopAnd and;
+
+    MinTf (QrySopAnd op, RetrievalModel model, QryScorer[] args) {
+      super (op, model, args);
+      this.and = op;
+    }
+
+    public double getScore () {
+      return this.and.getMinTf ();
+    }
+  }
+
+  /**
+   *  #WAND for BM25 and ranked Boolean.  The weighted scores of the
+   *  arguments are added to Double.MAX_VALUE, as QrySopWAnd does, or
+   *  the score is 0 if any argument's score is 0.
+   */
+  static final class WeightedMin extends QryScorer {
+
+    private final double[] weights;
+
+    WeightedMin (QrySop op, RetrievalModel model, QryScorer[] args, double[] weights) {
+      super (op, model, args);
+      this.weights = weights;
+    }
+
+    public double getScore () throws IOException {
+      double score = Double.MAX_VALUE;
+
+      for (int i = 0; i < this.args.length; i++) {
+        double q_score = this.args[i].getScore ();
+        if (q_score == 0.0) {
+          return 0.0;
+        }
+        score += q_score * this.weights[i];
+      }
+      return score;
+    }
+  }
+
+  /**
+   *  The largest score of the arguments that match the document:  #OR
+   *  for BM25 and ranked Boolean.
+   */
+  static final class Max extends QryScorer {
+
+    Max (QrySop op, RetrievalModel model, QryScorer[] args) {
+      super (op, model, args);
+    }
+
+    public double getScore () throws IOException {
+      double score = 0.0;
+      int docid = this.op.docIteratorGetMatch ();
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.argMatches (i, docid)) {
+          score = Math.max (score, this.args[i].getScore ());
+        }
+      }
+      return score;
+    }
+  }
+
+  /**
+   *  #AND and #WAND for the unranked Boolean retrieval model.
+   */
+  static final class BooleanAnd extends QryScorer {
+
+    BooleanAnd (QrySop op, RetrievalModel model, QryScorer[] args) {
+      super (op, model, args);
+    }
+
+    public double getScore () throws IOException {
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.args[i].getScore () == 0.0) {
+          return 0.0;
+        }
+      }
+      return 1.0;
+    }
+  }
+
+  /**
+   *  #OR for the unranked Boolean retrieval model.
+   */
+  static final class BooleanOr extends QryScorer {
+
+    BooleanOr (QrySop op, RetrievalModel model, QryScorer[] args) {
+      super (op, model, args);
+    }
+
+    public double getScore () {
+      int docid = this.op.docIteratorGetMatch ();
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.argMatches (i, docid)) {
+          return 1.0;
+        }
+      }
+      return 0.0;
+    }
+  }
+
+  /**
+   *  #AND for the Indri retrieval model:  the geometric mean of the
+   *  arguments' scores (or default scores), or its log.
+   */
+  static final class IndriAnd extends QryScorer {
+
+    private final double[] logWeights;
+    private final double exponent;
+    private final boolean logScores;
+
+    IndriAnd (QrySop op, RetrievalModelIndri model, QryScorer[] args,
+              double[] logWeights) {
+      super (op, model, args);
+      this.logWeights = logWeights;
+      this.exponent = 1.0 / (double) args.length;
+      this.logScores = model.logScores;
+    }
+
+    public double getScore () throws IOException {
+      return this.combine (this.op.docIteratorGetMatch ());
+    }
+
+    public double getDefaultScore (long docid) throws IOException {
+      return this.combine (docid);
+    }
+
+    public double getLogScore () throws IOException {
+      return this.combineLogs (this.op.docIteratorGetMatch ());
+    }
+
+    public double getLogDefaultScore (long docid) throws IOException {
+      return this.combineLogs (docid);
+    }
+
+    private double combine (long docid) throws IOException {
+      if (this.logScores) {
+        return Math.exp (this.combineLogs (docid));
+      }
+
+      double score = 1.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        score *= this.argMatches (i, docid) ?
+          this.args[i].getScore () : this.args[i].getDefaultScore (docid);
+      }
+      return Math.pow (score, this.exponent);
+    }
+
+    private double combineLogs (long docid) throws IOException {
+      double logScore = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        logScore += this.logWeights[i] * (this.argMatches (i, docid) ?
+          this.args[i].getLogScore () : this.args[i].getLogDefaultScore (docid));
+      }
+      return logScore;
+    }
+  }
+
+  /**
+   *  #WAND for the Indri retrieval model:  the weighted geometric mean
+   *  of the arguments' scores (or default scores), or its log.
+   */
+  static final class IndriWAnd extends QryScorer {
+
+    private final double[] exponents;
+    private final boolean logScores;
+
+    IndriWAnd (QrySop op, RetrievalModelIndri model, QryScorer[] args,
+               double[] exponents) {
+      super (op, model, args);
+      this.exponents = exponents;
+      this.logScores = model.logScores;
+    }
+
+    public double getScore () throws IOException {
+      return this.combine (this.op.docIteratorGetMatch ());
+    }
+
+    public double getDefaultScore (long docid) throws IOException {
+      return this.combine (docid);
+    }
+
+    public double getLogScore () throws IOException {
+      return this.combineLogs (this.op.docIteratorGetMatch ());
+    }
+
+    public double getLogDefaultScore (long docid) throws IOException {
+      return this.combineLogs (docid);
+    }
+
+    private double combine (long docid) throws IOException {
+      if (this.logScores) {
+        return Math.exp (this.combineLogs (docid));
+      }
+
+      double score = 1.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        double q_score = this.argMatches (i, docid) ?
+          this.args[i].getScore () : this.args[i].getDefaultScore (docid);
+        score *= Math.pow (q_score, this.exponents[i]);
+      }
+      return score;
+    }
+
+    private double combineLogs (long docid) throws IOException {
+      double logScore = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        logScore += this.exponents[i] * (this.argMatches (i, docid) ?
+          this.args[i].getLogScore () : this.args[i].getLogDefaultScore (docid));
+      }
+      return logScore;
+    }
+  }
+
+  /**
+   *  #OR for the Indri retrieval model.  Its default score is 0.
+   */
+  static final class IndriOr extends QryScorer {
+
+    IndriOr (QrySop op, RetrievalModel model, QryScorer[] args) {
+      super (op, model, args);
+    }
+
+    public double getScore () throws IOException {
+      double score = 1.0;
+      int docid = this.op.docIteratorGetMatch ();
+
+      for (int i = 0; i < this.args.length; i++) {
+        score *= this.argMatches (i, docid) ?
+          1.0 - this.args[i].getScore () :
+          1.0 - this.args[i].getDefaultScore (docid);
+      }
+      return 1.0 - score;
+    }
+
+    public double getDefaultScore (long docid) {
+      return 0.0;
+    }
+  }
+
+  /**
+   *  #SUM for the Indri retrieval model:  the sum of the arguments'
+   *  scores.  Its default score is 0.
+   */
+  static final class IndriSum extends QryScorer {
+
+    IndriSum (QrySop op, RetrievalModel model, QryScorer[] args) {
+      super (op, model, args);
+    }
+
+    public double getScore () throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        score += this.args[i].getScore ();
+      }
+      return score;
+    }
+
+    public double getDefaultScore (long docid) {
+      return 0.0;
+    }
+  }
+
+  /**
+   *  #WSUM for the Indri retrieval model:  the weighted mean of the
+   *  arguments' scores (or default scores).
+   */
+  static final class IndriWSum extends QryScorer {
+
+    private final double[] weights;
+
+    IndriWSum (QrySop op, RetrievalModel model, QryScorer[] args,
+               double[] weights) {
+      super (op, model, args);
+      this.weights = weights;
+    }
+
+    public double getScore () throws IOException {
+      return this.combine (this.op.docIteratorGetMatch ());
+    }
+
+    public double getDefaultScore (long docid) throws IOException {
+      return this.combine (docid);
+    }
+
+    private double combine (long docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        double q_score = this.argMatches (i, docid) ?
+          this.args[i].getScore () : this.args[i].getDefaultScore (docid);
+        score += (q_score * this.weights[i]);
+      }
+      return score;
+    }
+  }
+}
@@ -33,6 +33,61 @@ public abstract class QrySop extends Qry {
   public abstract double getDefaultScore (RetrievalModel r, long docid)
     throws IOException;
 
+  /**
+   *  Get the log of the score of the document that docIteratorHasMatch
+   *  matched.  Operators that multiply their arguments' scores (e.g.,
+   *  the Indri #AND) override this to add log scores instead, so that
+   *  log scores are passed up the query tree and the scores of long
+   *  queries don't underflow.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScore (RetrievalModel r) throws IOException {
+    return Math.log (this.getScore (r));
+  }
+
+  /**
+   *  Get the log of the default score of a document that the query
+   *  doesn't match.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal id of the document.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogDefaultScore (RetrievalModel r, long docid)
+    throws IOException {
+    return Math.log (this.getDefaultScore (r, docid));
+  }
+
+  /**
+   *  Get the weighted sum of the arguments' log scores for a document.
+   *  An argument that doesn't match the document contributes its log
+   *  default score.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param weights The weight of each argument.
+   *  @param docid The internal id of the document.
+   *  @return The weighted sum of log scores.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  protected double getWeightedLogScore (RetrievalModel r, double[] weights,
+                                        long docid) throws IOException {
+    double logScore = 0.0;
+
+    for (int i = 0; i < this.args.size (); i++) {
+      QrySop q_i = (QrySop) this.args.get (i);
+
+      if (q_i.docIteratorHasMatch (r) &&
+          (q_i.docIteratorGetMatch () == docid)) {
+        logScore += weights[i] * q_i.getLogScore (r);
+      } else {
+        logScore += weights[i] * q_i.getLogDefaultScore (r, docid);
+      }
+    }
+
+    return logScore;
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -3,15 +3,42 @@
  */
 
 import java.io.*;
+import java.util.*;
 
 /**
  *  The OR operator for all retrieval models.
  */
 public class QrySopAnd extends QrySop {
+
+  /**
+   *  The weight of each argument's log score in the Indri geometric
+   *  mean, 1/n for n arguments.
+   */
+  private double[] logWeights = new double[0];
+
+  /**
+   *  If conjunctions are ordered (RetrievalModel.orderedConjunctions),
+   *  the indexes of the arguments in ascending order of df, which
+   *  docIteratorHasMatchAll examines them in.  Otherwise null.
+   */
+  private int[] conjunctOrder = null;
+
+  /**
+   *  If conjunctions are ordered, the retrieval model is a Boolean
+   *  model, and every argument is a SCORE operator, the arguments of
+   *  the SCORE operators, so that a score can be computed directly from
+   *  their aligned postings.  Otherwise null.
+   */
+  private QryIop[] conjunctTerms = null;
+
   public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
     if (this.args.size() == 0) {
       return 0.0; 
     }
+    if ((r instanceof RetrievalModelIndri) &&
+        ((RetrievalModelIndri) r).logScores) {
+      return Math.exp (this.getLogDefaultScore (r, docid));
+    }
     Double score = null;
     double qsize = (double)this.args.size();
     for (int i=0; i<this.args.size(); i++) {
@@ -52,7 +79,7 @@ public class QrySopAnd extends QrySop {
     if (r instanceof RetrievalModelIndri) {
       return this.docIteratorHasMatchMin (r);
     } else {
-      return this.docIteratorHasMatchAll (r); 
+      return this.docIteratorHasMatchAll (r, this.conjunctOrder); 
     }
   }
 
@@ -80,10 +107,158 @@ public class QrySopAnd extends QrySop {
 
   
 
+  /**
+   *  Get the log of the Indri score of the document that
+   *  docIteratorHasMatch matched, without exponentiating.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScore (RetrievalModel r) throws IOException {
+    if ((r instanceof RetrievalModelIndri) && (this.args.size () > 0)) {
+      return this.getWeightedLogScore (r, this.logWeights,
+                                       this.docIteratorGetMatch ());
+    }
+    return super.getLogScore (r);
+  }
+
+  /**
+   *  Get the log of the Indri default score of a document, without
+   *  exponentiating.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal id of the document.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogDefaultScore (RetrievalModel r, long docid)
+    throws IOException {
+    if ((r instanceof RetrievalModelIndri) && (this.args.size () > 0)) {
+      return this.getWeightedLogScore (r, this.logWeights, docid);
+    }
+    return super.getLogDefaultScore (r, docid);
+  }
+
+  /**
+   *  Initialize the query operator (and its arguments), and the weights
+   *  of the arguments' log scores.
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r) throws IOException {
+    super.initialize (r);
+
+    int n = this.args.size ();
+
+    if (this.logWeights.length != n) {
+      this.logWeights = new double[n];
+    }
+
+    Arrays.fill (this.logWeights, 1.0 / (double) n);
+
+    //  A conjunction can examine its arguments in any order and find
+    //  the same documents, so the rarest argument proposes candidates.
+
+    this.conjunctOrder = null;
+    this.conjunctTerms = null;
+
+    if ((r == null) || ! r.orderedConjunctions ||
+        (r instanceof RetrievalModelIndri) || (n == 0))
+      return;
+
+    //  Each argument's df and index are packed into a long, so the sort
+    //  is of primitives and arguments with equal dfs stay in argument
+    //  order.  A df is an estimate, so it is capped to fit.
+
+    long[] keys = new long[n];
+
+    for (int i = 0; i < n; i++) {
+      long df = Math.min (estimateDf (this.args.get (i)), Integer.MAX_VALUE);
+      keys[i] = (df << 32) | i;
+    }
+
+    Arrays.sort (keys);
+    this.conjunctOrder = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      this.conjunctOrder[i] = (int) keys[i];
+    }
+
+    if ((r instanceof RetrievalModelRankedBoolean) ||
+        (r instanceof RetrievalModelUnrankedBoolean)) {
+      QryIop[] terms = new QryIop[n];
+
+      for (int i = 0; i < n; i++) {
+        if (! (this.args.get (i) instanceof QrySopScore))
+          return;
+        terms[i] = (QryIop) this.args.get (i).args.get (0);
+      }
+
+      this.conjunctTerms = terms;
+    }
+  }
+
+  /**
+   *  Estimate the number of documents that a query matches, for
+   *  ordering the arguments of a conjunction.  The query must be
+   *  initialized.  An inverted list's estimate is its df, a conjunction's
+   *  is its smallest argument's, and other operators' is the sum of
+   *  their arguments'.
+   *  @param q A query.
+   *  @return The estimate.
+   */
+  private static long estimateDf (Qry q) {
+
+    if (q instanceof QryIop) {
+      return ((QryIop) q).getDf ();
+    } else if (q instanceof QrySopScore) {
+      return estimateDf (q.args.get (0));
+    }
+
+    boolean conjunction = (q instanceof QrySopAnd);
+    long df = conjunction ? Long.MAX_VALUE : 0L;
+
+    for (Qry q_i : q.args) {
+      long df_i = estimateDf (q_i);
+      df = conjunction ? Math.min (df, df_i) : df + df_i;
+    }
+
+    return df;
+  }
+
+  /**
+   *  Get the arguments of the SCORE operators whose score can be
+   *  computed directly from their aligned postings (see initialize).
+   *  @return The arguments, or null.
+   */
+  QryIop[] getConjunctTerms () {
+    return this.conjunctTerms;
+  }
+
+  /**
+   *  Get the ranked Boolean score of the document that all of the
+   *  conjunct terms match:  their smallest tf, or 0 if any tf is 0.
+   *  @return The document score.
+   */
+  final double getMinTf () {
+    double score = Double.MAX_VALUE;
+
+    for (int i = 0; i < this.conjunctTerms.length; i++) {
+      double tf = (double) this.conjunctTerms[i].getTfOfDoc ();
+      if (tf == 0.0) {
+        return 0.0;
+      }
+      score = Math.min (score, tf);
+    }
+    return score;
+  }
+
   private double getScoreIndri (RetrievalModel r) throws IOException {
     if (this.args.size() == 0) {
       return 0.0; 
     }
+    if (((RetrievalModelIndri) r).logScores) {
+      return Math.exp (this.getLogScore (r));
+    }
     Double score = null;
     double qsize = (double)this.args.size();
     int docid = this.docIteratorGetMatch();
@@ -148,6 +323,9 @@ public class QrySopAnd extends QrySop {
     if (this.args.size() == 0) {
       return 0.0; 
     }
+    if (this.conjunctTerms != null) {
+      return this.getMinTf ();
+    }
     for (int i=0; i<this.args.size(); i++) {
 
       //  Java knows that the i'th query argument is a Qry object, but
@@ -190,6 +368,12 @@ public class QrySopAnd extends QrySop {
     if (this.args.size() == 0) {
       return 0.0; 
     }
+
+    //  The SCORE operator's unranked Boolean score is always 1.
+
+    if (this.conjunctTerms != null) {
+      return 1.0;
+    }
     for (int i=0; i<this.args.size(); i++) {
 
       //  Java knows that the i'th query argument is a Qry object, but
@@ -4,32 +4,124 @@
 
 import java.io.*;
 import java.lang.IllegalArgumentException;
+import java.util.*;
+
+import org.apache.lucene.index.Impact;
 
 /**
  *  The SCORE operator for all retrieval models.
  */
 public class QrySopScore extends QrySop {
 
+  /**
+   *  Document-independent values that should be determined just once.
+   *  Some retrieval models have these, some don't.  They are computed
+   *  for the retrieval model that the operator was initialized with.
+   */
+  private RetrievalModel scoringModel = null;
+
+  //  The lengths of the argument's field, indexed by internal docid.
+  //  If the operator is restricted to a segment, its docids are
+  //  segment-local, and docLengthBase is the segment's docBase, so the
+  //  segment's slice of the column is used.
+
+  private int[] docLengths;
+  private int docLengthBase = 0;
+
+  //  Indri:  the collection probability of the argument, and the
+  //  smoothing terms that depend only on it.
+
+  private double pqc;
+  private double muPqc;
+  private double lambdaPqc;
+  private double oneMinusLambda;
+  private double mu;
+
+  //  Indri:  the default score, and its log, depend only on the
+  //  document's length, so they are cached by length for the query.
+  //  NaN marks a length whose value isn't cached yet.  Very long
+  //  documents are rare, and they aren't cached.
+
+  private static final int MAX_CACHED_LENGTH = 1 << 16;
+
+  private double[] defaultScores = new double[0];
+  private double[] logDefaultScores = new double[0];
+
+  //  BM25:  the idf of the argument, the average document length of
+  //  its field, and the model constants.
+
+  private double idf;
+  private double avgDocLen;
+  private double k1;
+  private double b;
+  private double oneMinusB;
+
   public double getDefaultScore (RetrievalModel r, long docid)throws IOException {
-    // System.out.println("Getting default");
-    RetrievalModelIndri rm = (RetrievalModelIndri)r; 
-    QryIop qop = ((QryIop) this.args.get (0));
-    double doc_len = (double)(Idx.getFieldLength(qop.getField(), (int)docid));
-    double ctf_qop = (double)qop.getCtf();
-    double ctf = (ctf_qop == 0.0) ? 0.5 : ctf_qop;
-    double pqc = ctf / ((double)Idx.getSumOfFieldLengths(qop.getField()));
-    // System.out.println("QTF " + qop.getCtf());
-    // System.out.println("PQC " + pqc);
-    double p1 = (1.0 - rm.lambda) * ((rm.mu * pqc) / (doc_len + rm.mu));
-    double p2 = rm.lambda * pqc;
-    return p1 + p2; 
+    this.bindScoringContext (r);
+    return this.getDefaultScoreIndri (docid);
   }
 
   /**
-   *  Document-independent values that should be determined just once.
-   *  Some retrieval models have these, some don't.
+   *  Get the log of the default score of a document that the argument
+   *  doesn't match.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal id of the document.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index
    */
-  
+  public double getLogDefaultScore (RetrievalModel r, long docid)
+    throws IOException {
+    this.bindScoringContext (r);
+    return this.getLogDefaultScoreIndri (docid);
+  }
+
+  /**
+   *  Get an upper bound on the score of any document for the BM25
+   *  retrieval model.  The tf weight tf / (tf + k1 ((1-b) + b dl/avgdl))
+   *  grows with tf and shrinks with dl, so it is at most
+   *  maxTf / (maxTf + k1 (1-b)).  Other retrieval models have no bound.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound, or Double.POSITIVE_INFINITY.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxScore (RetrievalModel r) throws IOException {
+
+    if (! (r instanceof RetrievalModelBM25))
+      return Double.POSITIVE_INFINITY;
+
+    this.bindScoringContext (r);
+    double maxTf = (double)(((QryIop) this.args.get (0)).getMaxTf ());
+
+    if (maxTf == 0.0)
+      return 0.0;
+
+    return this.idf * (maxTf / (maxTf + this.k1 * this.oneMinusB));
+  }
+
+  /**
+   *  Get an upper bound on the BM25 score of the documents in the
+   *  argument's current postings block, from the block's impacts (see
+   *  QryIopTerm.advanceShallow).  Each impact is the tf and length
+   *  (norm) of a document that may have the highest score in the block.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getBlockMaxScore (RetrievalModel r) throws IOException {
+
+    this.bindScoringContext (r);
+    double maxP2 = 0.0;
+
+    for (Impact impact : ((QryIopTerm) this.args.get (0)).getBlockImpacts ()) {
+      double tf = (double) impact.freq;
+      double doc_len = (double) Math.max (0L, impact.norm);
+      double p2 = tf / (tf + this.k1 * (this.oneMinusB + this.b * (doc_len / this.avgDocLen)));
+      maxP2 = Math.max (maxP2, p2);
+    }
+
+    return this.idf * maxP2;
+  }
+
   /**
    *  Indicates whether the query has a match.
    *  @param r The retrieval model that determines what is a match
@@ -62,31 +154,115 @@ public class QrySopScore extends QrySop {
   }
 
   private double getScoreIndri (RetrievalModel r) throws IOException {
-    // System.out.println("Getting actual indri");
-    RetrievalModelIndri rm = (RetrievalModelIndri)r; 
     QryIop qop = ((QryIop) this.args.get (0));
-    double tf =  (double)(qop.getTfOfDoc());
-    double doc_len = (double)(Idx.getFieldLength(qop.getField(), qop.docIteratorGetMatch()));
-    double ctf_qop = (double)qop.getCtf();
-    double ctf = (ctf_qop == 0.0) ? 0.5 : ctf_qop;
-    double pqc = ctf / ((double)Idx.getSumOfFieldLengths(qop.getField()));
-    double p1 = (1.0 - rm.lambda) * ((tf + (rm.mu * pqc)) / (doc_len + rm.mu));
-    double p2 = rm.lambda * pqc;
-    return p1 + p2;
+    this.bindScoringContext (r);
+    return this.getScoreIndri (qop.getTfOfDoc(), qop.docIteratorGetMatch());
   }
 
   private double getScoreBM25 (RetrievalModel r) throws IOException {
-    RetrievalModelBM25 rm = (RetrievalModelBM25)r;
     QryIop qop = ((QryIop) this.args.get (0));
-    double tf =  (double)(qop.getTfOfDoc());
-    double df = (double)(qop.getDf());
-    double num_docs_n = (double)Idx.getNumDocs();
-    double num_docs_field = (double)(Idx.getDocCount(qop.getField()));
-    double doc_len = (double)(Idx.getFieldLength(qop.getField(), qop.docIteratorGetMatch()));
-    double avg_doc_len = ((double)(Idx.getSumOfFieldLengths(qop.getField()))) / num_docs_field;
-    double p1 = Math.max(0.0, Math.log(((num_docs_n - df + 0.5) / (df + 0.5))));
-    double p2 = tf / (tf + rm.k_1 * ((1.0 - rm.b) + rm.b * (doc_len / avg_doc_len)));
-    return p1*p2;
+    this.bindScoringContext (r);
+    return this.getScoreBM25 (qop.getTfOfDoc(), qop.docIteratorGetMatch());
+  }
+
+  /**
+   *  Get the Indri score of a document that the argument matches.  The
+   *  operator must have been initialized for an Indri retrieval model.
+   *  @param tf The term frequency of the argument in the document.
+   *  @param docid The internal id of the document.
+   *  @return The document score.
+   */
+  final double getScoreIndri (int tf, int docid) {
+    double doc_len = (double)(this.docLengths[this.docLengthBase + docid]);
+    double p1 = this.oneMinusLambda * (((double) tf + this.muPqc) / (doc_len + this.mu));
+    return p1 + this.lambdaPqc;
+  }
+
+  /**
+   *  Get the Indri default score of a document that the argument
+   *  doesn't match.  The operator must have been initialized for an
+   *  Indri retrieval model.
+   *  @param docid The internal id of the document.
+   *  @return The default score.
+   */
+  final double getDefaultScoreIndri (long docid) {
+    int doc_len = this.docLengths[this.docLengthBase + (int)docid];
+
+    if (doc_len < this.defaultScores.length) {
+      double score = this.defaultScores[doc_len];
+
+      if (! Double.isNaN (score))
+        return score;
+    } else if (doc_len < MAX_CACHED_LENGTH) {
+      this.defaultScores = growCache (this.defaultScores, doc_len);
+    } else {
+      return this.computeDefaultScoreIndri (doc_len);
+    }
+
+    return (this.defaultScores[doc_len] = this.computeDefaultScoreIndri (doc_len));
+  }
+
+  /**
+   *  Get the log of the Indri default score of a document that the
+   *  argument doesn't match.  The operator must have been initialized
+   *  for an Indri retrieval model.
+   *  @param docid The internal id of the document.
+   *  @return The log of the default score.
+   */
+  final double getLogDefaultScoreIndri (long docid) {
+    int doc_len = this.docLengths[this.docLengthBase + (int)docid];
+
+    if (doc_len < this.logDefaultScores.length) {
+      double logScore = this.logDefaultScores[doc_len];
+
+      if (! Double.isNaN (logScore))
+        return logScore;
+    } else if (doc_len < MAX_CACHED_LENGTH) {
+      this.logDefaultScores = growCache (this.logDefaultScores, doc_len);
+    } else {
+      return Math.log (this.computeDefaultScoreIndri (doc_len));
+    }
+
+    return (this.logDefaultScores[doc_len] =
+            Math.log (this.getDefaultScoreIndri (docid)));
+  }
+
+  /**
+   *  Compute the Indri default score of a document.
+   *  @param doc_len The length of the argument's field in the document.
+   *  @return The default score.
+   */
+  private double computeDefaultScoreIndri (int doc_len) {
+    double p1 = this.oneMinusLambda * (this.muPqc / ((double) doc_len + this.mu));
+    return p1 + this.lambdaPqc;
+  }
+
+  /**
+   *  Grow a cache of values indexed by document length so that it has
+   *  an entry for a length.  New entries are NaN.
+   *  @param cache The cache.
+   *  @param doc_len A document length less than MAX_CACHED_LENGTH.
+   *  @return The grown cache.
+   */
+  private static double[] growCache (double[] cache, int doc_len) {
+    int length = Math.min (Math.max (doc_len + 1, 2 * cache.length), MAX_CACHED_LENGTH);
+    double[] grown = Arrays.copyOf (cache, length);
+    Arrays.fill (grown, cache.length, length, Double.NaN);
+    return grown;
+  }
+
+  /**
+   *  Get the BM25 score of a document that the argument matches.  The
+   *  operator must have been initialized for a BM25 retrieval model.
+   *  @param tf The term frequency of the argument in the document.
+   *  @param docid The internal id of the document.
+   *  @return The document score.
+   */
+  final double getScoreBM25 (int tf, int docid) {
+    double tf_d = (double) tf;
+    double doc_len = (double)(this.docLengths[this.docLengthBase + docid]);
+    double p2 = tf_d / (tf_d + this.k1 * (this.oneMinusB + this.b * (doc_len / this.avgDocLen)));
+    return this.idf * p2;
   }
   
   private double getScoreRankedBoolean (RetrievalModel r) throws IOException {
@@ -95,6 +271,83 @@ public class QrySopScore extends QrySop {
     return (double)tf;
   }
 
+  /**
+   *  Get the length normalization of BM25, k1 ((1-b) + b dl/avgdl), for
+   *  a block of documents.  It depends only on the field, so operators
+   *  whose arguments are in the same field can share it.  The operator
+   *  must have been initialized for a BM25 retrieval model.
+   *  @param docids The internal ids of the documents.
+   *  @param count The number of documents in the block.
+   *  @param norms Returns the normalization of each document.
+   */
+  final void getNormsBM25 (int[] docids, int count, double[] norms) {
+
+    for (int j = 0; j < count; j++) {
+      norms[j] = (double)(this.docLengths[this.docLengthBase + docids[j]]);
+    }
+
+    for (int j = 0; j < count; j++) {
+      norms[j] = this.k1 * (this.oneMinusB + this.b * (norms[j] / this.avgDocLen));
+    }
+  }
+
+  /**
+   *  Get the BM25 scores of a block of documents.  The loop works on
+   *  primitive arrays, so the JIT can vectorize it.  The operator must
+   *  have been initialized for a BM25 retrieval model.
+   *  @param tfs The term frequency of the argument in each document.
+   *  @param count The number of documents in the block.
+   *  @param norms The normalization of each document (getNormsBM25).
+   *  @param scores Returns the score of each document whose tf isn't 0.
+   */
+  final void getScoresBM25 (int[] tfs, int count, double[] norms,
+                            double[] scores) {
+
+    for (int j = 0; j < count; j++) {
+      double tf = (double) tfs[j];
+      scores[j] = this.idf * (tf / (tf + norms[j]));
+    }
+  }
+
+  /**
+   *  Get the Indri smoothing denominator, dl + mu, for a block of
+   *  documents.  It depends only on the field, so operators whose
+   *  arguments are in the same field can share it.  The operator must
+   *  have been initialized for an Indri retrieval model.
+   *  @param docids The internal ids of the documents.
+   *  @param count The number of documents in the block.
+   *  @param norms Returns the denominator of each document.
+   */
+  final void getNormsIndri (int[] docids, int count, double[] norms) {
+
+    for (int j = 0; j < count; j++) {
+      norms[j] = (double)(this.docLengths[this.docLengthBase + docids[j]]);
+    }
+
+    for (int j = 0; j < count; j++) {
+      norms[j] = norms[j] + this.mu;
+    }
+  }
+
+  /**
+   *  Get the Indri scores of a block of documents.  A document whose tf
+   *  is 0 gets the default score.  The loop works on primitive arrays,
+   *  so the JIT can vectorize it.  The operator must have been
+   *  initialized for an Indri retrieval model.
+   *  @param tfs The term frequency of the argument in each document.
+   *  @param count The number of documents in the block.
+   *  @param norms The denominator of each document (getNormsIndri).
+   *  @param scores Returns the score of each document.
+   */
+  final void getScoresIndri (int[] tfs, int count, double[] norms,
+                             double[] scores) {
+
+    for (int j = 0; j < count; j++) {
+      double p1 = this.oneMinusLambda * (((double) tfs[j] + this.muPqc) / norms[j]);
+      scores[j] = p1 + this.lambdaPqc;
+    }
+  }
+
   /**
    *  getScore for the Unranked retrieval model.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -130,13 +383,69 @@ public class QrySopScore extends QrySop {
     Qry q = this.args.get (0);
     q.initialize (r);
 
-    /*
-     *  STUDENTS:: In HW2 during query initialization you may find it
-     *  useful to have this SCORE node precompute and cache some
-     *  values that it will use repeatedly when calculating document
-     *  scores.  It won't change your results, but it will improve the
-     *  speed of your software.
-     */
+    //  Compute the values that are the same for every document, so
+    //  that scoring a document is arithmetic and a length lookup.
+
+    this.scoringModel = null;
+    this.bindScoringContext (r);
+  }
+
+  /**
+   *  Restrict the operator's document lengths to one segment of the
+   *  index, whose docids are segment-local, or remove the restriction.
+   *  The operator's terms must be restricted to the same segment.
+   *  @param segment A segment of the current index, or null.
+   */
+  public void setSegment (SegmentContext segment) {
+    this.docLengthBase = (segment == null) ? 0 : segment.getDocBase ();
+  }
+
+  /**
+   *  Compute the document-independent scoring values for a retrieval
+   *  model, unless they were already computed for it, and fetch the
+   *  document length column of the argument's field.  The argument
+   *  must be initialized first.  The values are computed with the same
+   *  arithmetic as the per-document formulas, so scores don't change.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void bindScoringContext (RetrievalModel r) throws IOException {
+
+    if ((r == this.scoringModel) || (r == null))
+      return;
+
+    QryIop qop = ((QryIop) this.args.get (0));
+    String field = qop.getField();
+
+    if ((r instanceof RetrievalModelIndri) ||
+        (r instanceof RetrievalModelBM25)) {
+      this.docLengths = Idx.getFieldLengths(field);
+    }
+
+    if (r instanceof RetrievalModelIndri) {
+      RetrievalModelIndri rm = (RetrievalModelIndri)r;
+      double ctf_qop = (double)qop.getCtf();
+      double ctf = (ctf_qop == 0.0) ? 0.5 : ctf_qop;
+      this.pqc = ctf / ((double)Idx.getSumOfFieldLengths(field));
+      this.muPqc = rm.mu * this.pqc;
+      this.lambdaPqc = rm.lambda * this.pqc;
+      this.oneMinusLambda = 1.0 - rm.lambda;
+      this.mu = rm.mu;
+      Arrays.fill (this.defaultScores, Double.NaN);
+      Arrays.fill (this.logDefaultScores, Double.NaN);
+    } else if (r instanceof RetrievalModelBM25) {
+      RetrievalModelBM25 rm = (RetrievalModelBM25)r;
+      double df = (double)(qop.getDf());
+      double num_docs_n = (double)Idx.getNumDocs();
+      double num_docs_field = (double)(Idx.getDocCount(field));
+      this.avgDocLen = ((double)(Idx.getSumOfFieldLengths(field))) / num_docs_field;
+      this.idf = Math.max(0.0, Math.log(((num_docs_n - df + 0.5) / (df + 0.5))));
+      this.k1 = rm.k_1;
+      this.b = rm.b;
+      this.oneMinusB = 1.0 - rm.b;
+    }
+
+    this.scoringModel = r;
   }
 
 }
@@ -10,11 +10,20 @@ import java.util.*;
  */
 public class QrySopWAnd extends QrySopWeighted {
 
+  /**
+   *  The weight of each argument's log score in the Indri weighted
+   *  geometric mean, w_i / sum (w).
+   */
+  private double[] logWeights = new double[0];
 
   public  double getDefaultScore (RetrievalModel r, long docid)throws IOException {
     if (this.args.size() == 0) {
       return 0.0; 
     }
+    if ((r instanceof RetrievalModelIndri) &&
+        ((RetrievalModelIndri) r).logScores) {
+      return Math.exp (this.getLogDefaultScore (r, docid));
+    }
     assert(this.args.size() == this.weights.size());
     Double score = null;
     for (int i=0; i<this.args.size(); i++) {
@@ -83,11 +92,65 @@ public class QrySopWAnd extends QrySopWeighted {
     }
   }
 
+  /**
+   *  Get the log of the Indri score of the document that
+   *  docIteratorHasMatch matched, without exponentiating.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScore (RetrievalModel r) throws IOException {
+    if ((r instanceof RetrievalModelIndri) && (this.args.size () > 0)) {
+      return this.getWeightedLogScore (r, this.logWeights,
+                                       this.docIteratorGetMatch ());
+    }
+    return super.getLogScore (r);
+  }
+
+  /**
+   *  Get the log of the Indri default score of a document, without
+   *  exponentiating.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal id of the document.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogDefaultScore (RetrievalModel r, long docid)
+    throws IOException {
+    if ((r instanceof RetrievalModelIndri) && (this.args.size () > 0)) {
+      return this.getWeightedLogScore (r, this.logWeights, docid);
+    }
+    return super.getLogDefaultScore (r, docid);
+  }
+
+  /**
+   *  Initialize the query operator (and its arguments), and normalize
+   *  the weights of the arguments' log scores.
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r) throws IOException {
+    super.initialize (r);
+
+    int n = this.weights.size ();
+
+    if (this.logWeights.length != n) {
+      this.logWeights = new double[n];
+    }
+
+    for (int i = 0; i < n; i++) {
+      this.logWeights[i] = this.weights.get (i) / this.total_weight;
+    }
+  }
+
   private double getScoreIndri (RetrievalModel r) throws IOException {
     if (this.args.size() == 0) {
       return 0.0; 
     }
     assert(this.args.size() == this.weights.size());
+    if (((RetrievalModelIndri) r).logScores) {
+      return Math.exp (this.getLogScore (r));
+    }
     
     Double score = null;
     int docid = this.docIteratorGetMatch();
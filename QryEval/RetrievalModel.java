@@ -10,6 +10,102 @@
  */
 public abstract class RetrievalModel {
 
+  /*
+   *  Query evaluation options.  These are not retrieval model
+   *  parameters; they are set from the parameter file and tell query
+   *  operators how to evaluate the query.  Results do not change.
+   */
+
+  /**
+   *  If true, QryIopTerm operators read postings from the index as
+   *  they are iterated instead of materializing inverted lists.
+   */
+  public boolean streamingTerms = false;
+
+  /**
+   *  If true, QryIop docIterators advance through materialized inverted
+   *  lists with exponential (galloping) search instead of a linear scan.
+   */
+  public boolean gallopingAdvance = false;
+
+  /**
+   *  If true, QryIop operators keep their materialized inverted lists
+   *  block-compressed in memory (InvListCompressed).
+   */
+  public boolean compressedPostings = false;
+
+  /**
+   *  If not null, QryIop operators store their materialized inverted
+   *  lists off the Java heap, in this arena (InvListOffHeap).  The
+   *  arena is reset when each query finishes.
+   */
+  public PostingsArena postingsArena = null;
+
+  /**
+   *  If true, queries are evaluated one index segment at a time.  Each
+   *  segment evaluates its own query tree, with segment-local docids,
+   *  into its own collector, and the segments' top documents are
+   *  merged.
+   */
+  public boolean segmentLocal = false;
+
+  /**
+   *  If true, BM25 #SUM and #WSUM queries skip documents that can't
+   *  reach the top k (MaxScore), giving the same top k documents as
+   *  exhaustive evaluation.
+   */
+  public boolean maxScorePruning = false;
+
+  /**
+   *  If true, BM25 #SUM and #WSUM queries of terms skip blocks of
+   *  postings that can't reach the top k (Block-Max WAND over Lucene's
+   *  impacts), giving the same top k documents as exhaustive evaluation.
+   */
+  public boolean blockMaxWandPruning = false;
+
+  /**
+   *  If true, BM25 #SUM and #WSUM queries of terms are evaluated
+   *  term-at-a-time, with score accumulators, instead of
+   *  document-at-a-time.
+   */
+  public boolean termAtATime = false;
+
+  /**
+   *  If true, BM25 #SUM and #WSUM queries and Indri #AND and #WAND
+   *  queries of SCORE operators are scored a block of documents at a
+   *  time, in loops that the JIT can vectorize.
+   */
+  public boolean blockAtATime = false;
+
+  /**
+   *  If true, #AND operators that match documents that match all of
+   *  their arguments (i.e., not Indri) examine the argument with the
+   *  smallest df first, and Boolean #AND operators of SCORE operators
+   *  compute scores directly from their arguments' postings.
+   */
+  public boolean orderedConjunctions = false;
+
+  /**
+   *  If true, queries that are evaluated exhaustively are compiled into
+   *  scorers that are specialized for the retrieval model (QryScorer).
+   *  If false, the query tree calculates scores itself.
+   */
+  public boolean compiledScoring = false;
+
+  /**
+   *  If not null, BM25 #SUM and #WSUM queries of terms in the impact
+   *  index's field are evaluated score-at-a-time over it, processing
+   *  at most impactBudget postings.  Rankings are approximate.
+   */
+  public ImpactIndex impactIndex = null;
+  public long impactBudget = Long.MAX_VALUE;
+
+  /**
+   *  If true, report how many postings each QryIop operator examined
+   *  and skipped while its docIterator advanced.
+   */
+  public boolean advanceStatistics = false;
+
   /**
    *  The name of the default query operator for the retrieval model.
    *  @return The name of the default query operator.
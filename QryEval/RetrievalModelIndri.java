@@ -12,6 +12,12 @@ public class RetrievalModelIndri extends RetrievalModel {
   public double lambda;
   public double origWeight;
 
+  /**
+   *  If true, #AND and #WAND add weighted log scores, and scores are
+   *  exponentiated only when they leave the log-space operators.
+   */
+  public boolean logScores = false;
+
   public RetrievalModelIndri(int mu, double lambda) {
     System.out.println("Mu: " + mu + ", lambda: " + lambda);
     this.mu = mu; 
@@ -7,34 +7,24 @@ import java.util.*;
 /**
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
+ *  <p>
+ *  Entries are stored as primitive (internal docid, score) pairs.
+ *  External document ids are looked up lazily, because each lookup
+ *  reads a stored document:  sort looks up only the documents whose
+ *  scores tie, truncate looks up the documents that survive, and
+ *  getExternalDocid looks up (and remembers) any other document.
+ *  Lookups are done in bulk, in internal docid order.
+ *  </p>
  */
 public class ScoreList {
 
-  //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  //  Parallel arrays of internal docids, scores, and external docids.
+  //  An external docid is null until it is looked up.
 
-  private class ScoreListEntry {
-    private int docid;
-    private String externalId;
-    private double score;
-
-    private ScoreListEntry(int internalDocid, double score) {
-      this.docid = internalDocid;
-      this.score = score;
-
-      try {
-        this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-        ex.printStackTrace();
-      }
-    }
-  }
-
-  /**
-   *  A list of document ids and scores. 
-   */
-  private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+  private int[] docids = new int[16];
+  private double[] scores = new double[16];
+  private String[] externalIds = new String[16];
+  private int size = 0;
 
   /**
    *  Append a document score to a score list.
@@ -42,7 +32,17 @@ public class ScoreList {
    *  @param score The document's score.
    */
   public void add(int docid, double score) {
-    scores.add(new ScoreListEntry(docid, score));
+    if (this.size == this.docids.length) {
+      int capacity = 2 * this.docids.length;
+      this.docids = Arrays.copyOf(this.docids, capacity);
+      this.scores = Arrays.copyOf(this.scores, capacity);
+      this.externalIds = Arrays.copyOf(this.externalIds, capacity);
+    }
+
+    this.docids[this.size] = docid;
+    this.scores[this.size] = score;
+    this.externalIds[this.size] = null;
+    this.size++;
   }
 
   /**
@@ -51,7 +51,21 @@ public class ScoreList {
    *  @return The internal document id.
    */
   public int getDocid(int n) {
-    return this.scores.get(n).docid;
+    return this.docids[checkIndex(n)];
+  }
+
+  /**
+   *  Get the external docid of the n'th entry, looking it up if it
+   *  hasn't been looked up yet.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getExternalDocid(int n) throws IOException {
+    if (this.externalIds[checkIndex(n)] == null) {
+      this.externalIds[n] = Idx.getExternalDocid(this.docids[n]);
+    }
+    return this.externalIds[n];
   }
 
   /**
@@ -60,7 +74,7 @@ public class ScoreList {
    *  @return The document's score.
    */
   public double getDocidScore(int n) {
-    return this.scores.get(n).score;
+    return this.scores[checkIndex(n)];
   }
 
   /**
@@ -69,7 +83,7 @@ public class ScoreList {
    *  @param score The new score.
    */
   public void setDocidScore(int n, double score) {
-    this.scores.get(n).score = score;
+    this.scores[checkIndex(n)] = score;
   }
 
   /**
@@ -77,54 +91,243 @@ public class ScoreList {
    *  @return The size of the posting list.
    */
   public int size() {
-    return this.scores.size();
+    return this.size;
   }
 
-  /*
-   *  Compare two ScoreListEntry objects.  Sort by score, then
-   *  internal docid.
+  /**
+   *  Sort the list by score and external document id.  Entries are
+   *  sorted by score first; external ids are looked up only for runs
+   *  of entries whose scores tie, which are then sorted by external id.
+   *  Entries whose external id can't be found sort first in their run.
    *
-   *  STUDENTS:: You may need to modify this or create a new
-   *  comparator to sort ScoreLists appropriately for your HW.
+   *  STUDENTS:: You may need to modify this to sort ScoreLists
+   *  appropriately for your HW.
    */
-  public class ScoreListComparator implements Comparator<ScoreListEntry> {
-
-    @Override
-    public int compare(ScoreListEntry s1, ScoreListEntry s2) {
-      if (s1.score > s2.score)
-        return -1;
-      else if (s1.score < s2.score)
-        return 1;
-      if (s1.externalId == null) {
-        return -1; 
+  public void sort () {
+
+    //  Rank each score among the distinct scores, largest first, find
+    //  where each rank's run of entries starts, and move each entry, in
+    //  list order, to the next place in its run.  The sort is of
+    //  primitives, and it is stable.
+
+    int[] ranks = new int[this.size];
+    int numDistinct = Utils.rankDescending(this.scores, this.size, ranks);
+    int[] next = new int[numDistinct + 1];
+
+    for (int i = 0; i < this.size; i++) {
+      next[ranks[i] + 1]++;
+    }
+
+    for (int r = 0; r < numDistinct; r++) {
+      next[r + 1] += next[r];
+    }
+
+    int[] d = new int[this.size];
+    double[] s = new double[this.size];
+    String[] e = new String[this.size];
+
+    for (int i = 0; i < this.size; i++) {
+      int j = next[ranks[i]]++;
+      d[j] = this.docids[i];
+      s[j] = this.scores[i];
+      e[j] = this.externalIds[i];
+    }
+
+    System.arraycopy(d, 0, this.docids, 0, this.size);
+    System.arraycopy(s, 0, this.scores, 0, this.size);
+    System.arraycopy(e, 0, this.externalIds, 0, this.size);
+
+    //  Break ties by external id.  Scores tie if they have the same
+    //  rank, i.e., as Utils.rankDescending compares them.
+
+    int[] run = new int[0];
+    int[] buffer = new int[0];
+
+    for (int start = 0; start < this.size; ) {
+      int end = start + 1;
+
+      while ((end < this.size) &&
+             (Double.compare(this.scores[end] + 0.0,
+                             this.scores[start] + 0.0) == 0)) {
+        end++;
       }
-      if (s2.externalId == null) {
-        return 1;
+
+      if (end - start > 1) {
+        int n = end - start;
+
+        this.resolveExternalIds(start, end);
+
+        if (run.length < n) {
+          run = new int[n];
+          buffer = new int[n];
+        }
+
+        for (int i = 0; i < n; i++) {
+          run[i] = start + i;
+        }
+
+        this.mergeSortByExternalId(run, buffer, 0, n);
+        this.permuteRange(run, start, n);
       }
-      return s1.externalId.compareTo(s2.externalId) ;
-    }
-  }
 
-  /**
-   *  Sort the list by score and external document id.
-   */
-  public void sort () {
-    Collections.sort(this.scores, new ScoreListComparator());
+      start = end;
+    }
   }
 
   public void invert() {
-    Collections.reverse(this.scores); 
+    for (int i = 0, j = this.size - 1; i < j; i++, j--) {
+      this.swap(i, j);
+    }
   }
-  
+
   /**
    * Reduce the score list to the first num results to save on RAM.
-   * 
+   * The external ids of the results that remain are looked up.
+   *
    * @param num Number of results to keep.
    */
   public void truncate(int num) {
-    List<ScoreListEntry> truncated = new ArrayList<ScoreListEntry>(this.scores.subList(0,
-        Math.min(num, scores.size())));
-    this.scores.clear();
-    this.scores = truncated;
+    this.size = Math.max(0, Math.min(num, this.size));
+    this.docids = Arrays.copyOf(this.docids, Math.max(this.size, 1));
+    this.scores = Arrays.copyOf(this.scores, Math.max(this.size, 1));
+    this.externalIds = Arrays.copyOf(this.externalIds, Math.max(this.size, 1));
+    this.resolveExternalIds(0, this.size);
+  }
+
+  /**
+   *  Look up the external ids of entries [from, to) that haven't been
+   *  looked up yet.  Documents are read in internal docid order.  An
+   *  id that can't be read stays null.
+   *  @param from The first entry.
+   *  @param to The entry after the last.
+   */
+  private void resolveExternalIds(int from, int to) {
+    int[] unresolved = new int[to - from];
+    int count = 0;
+
+    for (int i = from; i < to; i++) {
+      if (this.externalIds[i] == null)
+        unresolved[count++] = i;
+    }
+
+    if (count == 0)
+      return;
+
+    //  Sort the entries by docid, packing (docid, entry) into a long.
+
+    long[] keys = new long[count];
+
+    for (int j = 0; j < count; j++) {
+      keys[j] = ((long) this.docids[unresolved[j]] << 32) | unresolved[j];
+    }
+
+    Arrays.sort(keys);
+
+    try {
+      for (long key : keys) {
+        int i = (int) key;
+        this.externalIds[i] = Idx.getExternalDocid(this.docids[i]);
+      }
+    }
+    catch (IOException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  /**
+   *  Sort entries by external id with a merge sort, which is stable.
+   *  Entries whose external id is null sort first.
+   *  @param entries The entries to sort, in entries[from..to-1].
+   *  @param buffer Scratch space at least as long as entries.
+   *  @param from The first entry to sort.
+   *  @param to The entry after the last.
+   */
+  private void mergeSortByExternalId(int[] entries, int[] buffer,
+                                     int from, int to) {
+    if (to - from < 2)
+      return;
+
+    int middle = (from + to) >>> 1;
+
+    this.mergeSortByExternalId(entries, buffer, from, middle);
+    this.mergeSortByExternalId(entries, buffer, middle, to);
+
+    if (compareExternalIds(this.externalIds[entries[middle - 1]],
+                           this.externalIds[entries[middle]]) <= 0)
+      return;
+
+    System.arraycopy(entries, from, buffer, from, to - from);
+
+    for (int i = from, a = from, b = middle; i < to; i++) {
+      if ((b >= to) ||
+          ((a < middle) &&
+           (compareExternalIds(this.externalIds[buffer[a]],
+                               this.externalIds[buffer[b]]) <= 0))) {
+        entries[i] = buffer[a++];
+      } else {
+        entries[i] = buffer[b++];
+      }
+    }
+  }
+
+  /**
+   *  Compare two external ids.  A null id is smaller than any other.
+   *  @param a An external id, or null.
+   *  @param b An external id, or null.
+   *  @return A negative number, zero, or a positive number if a is
+   *  smaller than, equal to, or larger than b.
+   */
+  private static int compareExternalIds(String a, String b) {
+    if (a == null)
+      return (b == null) ? 0 : -1;
+    if (b == null)
+      return 1;
+    return a.compareTo(b);
+  }
+
+  /**
+   *  Reorder entries [start, start + n) so that entry start + i is the
+   *  old entry order[i].
+   *  @param order The new order of the entries in the range.
+   *  @param start The first entry of the range.
+   *  @param n The number of entries in the range.
+   */
+  private void permuteRange(int[] order, int start, int n) {
+    int[] d = new int[n];
+    double[] s = new double[n];
+    String[] e = new String[n];
+
+    for (int i = 0; i < n; i++) {
+      d[i] = this.docids[order[i]];
+      s[i] = this.scores[order[i]];
+      e[i] = this.externalIds[order[i]];
+    }
+
+    System.arraycopy(d, 0, this.docids, start, n);
+    System.arraycopy(s, 0, this.scores, start, n);
+    System.arraycopy(e, 0, this.externalIds, start, n);
+  }
+
+  private void swap(int i, int j) {
+    int d = this.docids[i];
+    this.docids[i] = this.docids[j];
+    this.docids[j] = d;
+
+    double s = this.scores[i];
+    this.scores[i] = this.scores[j];
+    this.scores[j] = s;
+
+    String e = this.externalIds[i];
+    this.externalIds[i] = this.externalIds[j];
+    this.externalIds[j] = e;
+  }
+
+  /**
+   *  Check that an entry exists, as List.get would.
+   *  @param n The index of an entry.
+   *  @return n.
+   */
+  private int checkIndex(int n) {
+    return Objects.checkIndex(n, this.size);
   }
 }
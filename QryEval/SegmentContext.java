@@ -0,0 +1,55 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import org.apache.lucene.index.LeafReaderContext;
+
+/**
+ *  One segment (LeafReaderContext) of the current index, as it is seen
+ *  by a query tree that is evaluated segment-locally.  Operators that
+ *  are restricted to the segment use segment-local document ids, from
+ *  0 to getMaxDoc()-1; adding getDocBase() gives the internal
+ *  (index-wide) id.  Term operators read the segment's PostingsEnum,
+ *  and document lengths are read from the segment's slice of the
+ *  field's dense length column, which starts at getDocBase().
+ */
+public class SegmentContext {
+
+  //  --------------- Constants and variables -----------------------
+
+  private LeafReaderContext leaf;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Bind a segment of the current index.
+   *  @param leaf The segment.
+   */
+  public SegmentContext (LeafReaderContext leaf) {
+    this.leaf = leaf;
+  }
+
+  /**
+   *  Get the internal document id of the segment's first document.
+   *  @return The segment's docBase.
+   */
+  public int getDocBase () {
+    return this.leaf.docBase;
+  }
+
+  /**
+   *  Get the segment's Lucene context.
+   *  @return The segment.
+   */
+  public LeafReaderContext getLeaf () {
+    return this.leaf;
+  }
+
+  /**
+   *  Get the number of documents (including deleted documents) in the
+   *  segment.
+   *  @return The segment's maxDoc.
+   */
+  public int getMaxDoc () {
+    return this.leaf.reader ().maxDoc ();
+  }
+}
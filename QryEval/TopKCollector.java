@@ -0,0 +1,236 @@
+/**
+ *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  Collects the top k (docid, score) pairs of a query as documents are
+ *  scored.  The pairs are kept in a min-heap of primitive arrays, so a
+ *  document that can't be in the top k costs one comparison, and only
+ *  the documents that are kept are turned into ScoreList entries.
+ *  <p>
+ *  ScoreList breaks score ties by external id, which isn't known while
+ *  documents are collected.  Documents whose scores tie the smallest
+ *  score in the heap are therefore kept too, so that sorting the
+ *  collected ScoreList and truncating it to k gives the same documents
+ *  as sorting and truncating a list of every document.
+ *  </p>
+ */
+public class TopKCollector {
+
+  //  --------------- Constants and variables -----------------------
+
+  private int k;
+
+  /**
+   *  A min-heap of the best k documents so far, ordered by score.
+   */
+  private int[] docids;
+  private double[] scores;
+  private int size = 0;
+
+  /**
+   *  Documents that are not in the heap, but that tie the smallest
+   *  score in the heap.
+   */
+  private int[] tieDocids = new int[16];
+  private double[] tieScores = new double[16];
+  private int numTies = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an empty collector.
+   *  @param k The number of top documents to keep.
+   */
+  public TopKCollector (int k) {
+    this.k = Math.max (k, 0);
+    this.docids = new int[this.k];
+    this.scores = new double[this.k];
+  }
+
+  /**
+   *  Offer a scored document to the collector.  It is kept if it may
+   *  be in the top k.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   */
+  public void add (int docid, double score) {
+
+    if (this.size < this.k) {
+      this.heapPush (docid, score);
+      return;
+    }
+
+    if ((this.k == 0) || (score < this.scores[0]))
+      return;
+
+    if (score == this.scores[0]) {
+      this.addTie (docid, score);
+      return;
+    }
+
+    //  The document replaces the smallest one in the heap.  The old
+    //  ties, and the replaced document, are still ties only if the
+    //  smallest score didn't change.
+
+    int replacedDocid = this.docids[0];
+    double replacedScore = this.scores[0];
+
+    this.docids[0] = docid;
+    this.scores[0] = score;
+    this.heapSiftDown (0);
+
+    if (this.scores[0] == replacedScore) {
+      this.addTie (replacedDocid, replacedScore);
+    } else {
+      this.numTies = 0;
+    }
+  }
+
+  /**
+   *  Offer every document that another collector keeps to this one,
+   *  e.g., to merge the top k documents of the segments of an index.
+   *  The documents that the other collector keeps include every one of
+   *  its top k, so the merged collector keeps the top k of both.
+   *  @param other A collector.
+   *  @param docBase Added to the other collector's docids, e.g., a
+   *  segment's docBase.
+   */
+  public void addAll (TopKCollector other, int docBase) {
+
+    for (int i = 0; i < other.size; i++) {
+      this.add (docBase + other.docids[i], other.scores[i]);
+    }
+
+    for (int i = 0; i < other.numTies; i++) {
+      this.add (docBase + other.tieDocids[i], other.tieScores[i]);
+    }
+  }
+
+  /**
+   *  Remove every document, so that the collector can be reused.
+   */
+  public void clear () {
+    this.size = 0;
+    this.numTies = 0;
+  }
+
+  /**
+   *  Get the score that a document must reach to be in the top k, i.e.,
+   *  the k'th best score so far, or negative infinity if fewer than k
+   *  documents have been collected (positive infinity if k is 0).  The
+   *  threshold never decreases until the collector is cleared.
+   *  @return The threshold.
+   */
+  public double getThreshold () {
+    if (this.k == 0)
+      return Double.POSITIVE_INFINITY;
+    return (this.size < this.k) ? Double.NEGATIVE_INFINITY : this.scores[0];
+  }
+
+  /**
+   *  Get the number of top documents that the collector keeps.
+   *  @return k.
+   */
+  public int getK () {
+    return this.k;
+  }
+
+  /**
+   *  Get the number of documents that the collector keeps.
+   *  @return The number of documents.
+   */
+  public int size () {
+    return this.size + this.numTies;
+  }
+
+  /**
+   *  Get the collected documents as an unsorted score list.  Sorting it
+   *  and truncating it to k gives the top k documents.
+   *  @return The score list.
+   */
+  public ScoreList getScoreList () {
+
+    ScoreList results = new ScoreList ();
+
+    for (int i = 0; i < this.size; i++) {
+      results.add (this.docids[i], this.scores[i]);
+    }
+
+    for (int i = 0; i < this.numTies; i++) {
+      results.add (this.tieDocids[i], this.tieScores[i]);
+    }
+
+    return results;
+  }
+
+  /**
+   *  Add a document to the ties.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   */
+  private void addTie (int docid, double score) {
+    if (this.numTies == this.tieDocids.length) {
+      this.tieDocids = Arrays.copyOf (this.tieDocids, 2 * this.numTies);
+      this.tieScores = Arrays.copyOf (this.tieScores, 2 * this.numTies);
+    }
+    this.tieDocids[this.numTies] = docid;
+    this.tieScores[this.numTies] = score;
+    this.numTies ++;
+  }
+
+  /**
+   *  Add a document to the heap, which must have room for it.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   */
+  private void heapPush (int docid, double score) {
+    int j = this.size++;
+
+    while (j > 0) {
+      int parent = (j - 1) >>> 1;
+
+      if (this.scores[parent] <= score)
+        break;
+
+      this.docids[j] = this.docids[parent];
+      this.scores[j] = this.scores[parent];
+      j = parent;
+    }
+
+    this.docids[j] = docid;
+    this.scores[j] = score;
+  }
+
+  /**
+   *  Move the j'th heap entry down until the heap is ordered.
+   *  @param j The index of a heap entry.
+   */
+  private void heapSiftDown (int j) {
+
+    int docid = this.docids[j];
+    double score = this.scores[j];
+
+    while (true) {
+      int child = 2 * j + 1;
+
+      if (child >= this.size)
+        break;
+
+      if ((child + 1 < this.size) &&
+          (this.scores[child + 1] < this.scores[child]))
+        child ++;
+
+      if (score <= this.scores[child])
+        break;
+
+      this.docids[j] = this.docids[child];
+      this.scores[j] = this.scores[child];
+      j = child;
+    }
+
+    this.docids[j] = docid;
+    this.scores[j] = score;
+  }
+}
@@ -2,6 +2,7 @@
  *  Copyright (c) 2023, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
+import java.util.*;
 
 /**
  *  Miscellaneous utilities.
@@ -48,4 +49,40 @@ public class Utils {
       }
   }
 
+  /**
+   *  Rank values among their distinct values, largest first, so that
+   *  callers can sort by a value by sorting primitive keys.  Values are
+   *  compared with Double.compare after adding 0.0, so -0.0 ties 0.0
+   *  and NaN ties NaN.
+   *  @param values The values.
+   *  @param count The number of values to rank, values[0..count-1].
+   *  @param ranks Set to the rank of each value, 0 for the largest.
+   *  @return The number of distinct values.
+   */
+  static int rankDescending (double[] values, int count, int[] ranks) {
+
+    double[] distinct = new double[count];
+    int numDistinct = 0;
+
+    for (int i = 0; i < count; i++) {
+      distinct[i] = values[i] + 0.0;
+    }
+
+    Arrays.sort (distinct);
+
+    for (int i = 0; i < count; i++) {
+      if ((numDistinct == 0) ||
+          (Double.compare (distinct[i], distinct[numDistinct - 1]) != 0)) {
+        distinct[numDistinct++] = distinct[i];
+      }
+    }
+
+    for (int i = 0; i < count; i++) {
+      ranks[i] = numDistinct - 1 -
+        Arrays.binarySearch (distinct, 0, numDistinct, values[i] + 0.0);
+    }
+
+    return numDistinct;
+  }
+
 }